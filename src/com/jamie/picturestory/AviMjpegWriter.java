@@ -0,0 +1,447 @@
+package com.jamie.picturestory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes a Motion JPEG video to an AVI file: every frame is a complete JPEG, so no encoder is
+ * needed beyond {@link android.graphics.Bitmap#compress(android.graphics.Bitmap.CompressFormat,
+ * int, OutputStream)} and the file plays on anything that plays AVI. A frame that repeats the
+ * one before it is written as an empty chunk, which players show as the previous frame, so a page
+ * that stays on screen for a minute costs a few bytes a frame rather than a JPEG each.
+ *
+ * Audio, if there is any, is 16 bit PCM pulled from an {@link AudioSource} as the frames are
+ * written, and interleaved with them so that each frame is followed by the audio that plays while
+ * it is showing. Whatever audio is left when the writer is closed goes at the end.
+ *
+ * The file is a RIFF AVI with a video stream and an optional audio stream:
+ * <pre>
+ * RIFF 'AVI '
+ *     LIST 'hdrl'
+ *         'avih' (main header)
+ *         LIST 'strl'
+ *             'strh' (stream header, 'vids' / 'MJPG')
+ *             'strf' (BITMAPINFOHEADER)
+ *         LIST 'strl' (only with audio)
+ *             'strh' (stream header, 'auds')
+ *             'strf' (WAVEFORMATEX, PCM)
+ *     LIST 'movi'
+ *         '00dc' (one per frame)
+ *         '01wb' (the audio for the frame before it)
+ *     'idx1' (offset and size of every chunk)
+ * </pre>
+ * The sizes and frame counts in the headers aren't known until the end, so the headers are
+ * written again with the real values when the writer is closed. Nothing here depends on Android.
+ */
+public class AviMjpegWriter implements Closeable {
+    // The headers up to and including the 'movi' fourcc, see writeHeaders()
+    static final int HEADER_SIZE = 224;
+    // The offset of the 'movi' fourcc, which idx1 offsets are relative to
+    static final int MOVI_OFFSET = 220;
+    // The size of the audio stream's 'strl' list, which both of the above grow by with audio
+    static final int AUDIO_HEADER_SIZE = 102;
+
+    private static final String VIDEO_CHUNK = "00dc";
+    private static final String AUDIO_CHUNK = "01wb";
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int WAVE_FORMAT_PCM = 1;
+
+    // AVI 1.0 sizes are 32 bit and some players treat them as signed
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * Supplies the audio of a video, read as it is needed.
+     */
+    public interface AudioSource {
+        /**
+         * @return The number of samples per second
+         */
+        int getSampleRate();
+
+        /**
+         * @return The number of channels
+         */
+        int getChannelCount();
+
+        /**
+         * Read 16 bit little endian PCM samples, interleaved if there are several channels.
+         *
+         * @return The number of bytes read, or -1 at the end of the audio
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final OutputStream mOut;
+    private final int mHeaderSize;
+    private final int mMoviOffset;
+
+    private final AudioSource mAudio;
+    private final int mBlockAlign;
+    private final byte[] mAudioBuffer;
+    private long mAudioBytes = 0;
+    private int mMaxAudioChunkSize = 0;
+    private boolean mAudioEnded = false;
+
+    // The index entries, kept in memory until the end as they go after the frames
+    private ByteBuffer mIndex = newBuffer(INDEX_ENTRY_SIZE * 256);
+    private final ByteBuffer mChunkHeader = newBuffer(8);
+    private long mPosition;
+    private int mFrameCount = 0;
+    private int mMaxFrameSize = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Start a new video without audio, replacing any existing file.
+     *
+     * @param file The file to write
+     * @param width The width of the frames
+     * @param height The height of the frames
+     * @param frameRate The number of frames per second
+     */
+    public AviMjpegWriter(File file, int width, int height, int frameRate) throws IOException {
+        this(file, width, height, frameRate, null);
+    }
+
+    /**
+     * Start a new video, replacing any existing file.
+     *
+     * @param file The file to write
+     * @param width The width of the frames
+     * @param height The height of the frames
+     * @param frameRate The number of frames per second
+     * @param audio The audio to play along with the frames, may be null for none. It is read up to
+     *            the end by the time the writer is closed.
+     */
+    public AviMjpegWriter(File file, int width, int height, int frameRate, AudioSource audio)
+            throws IOException {
+        if (width <= 0 || height <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("Invalid video size " + width + "x" + height
+                    + " at " + frameRate + "fps");
+        }
+        if (audio != null && (audio.getSampleRate() <= 0 || audio.getChannelCount() <= 0)) {
+            throw new IllegalArgumentException("Invalid audio " + audio.getChannelCount()
+                    + " channels at " + audio.getSampleRate() + "Hz");
+        }
+        mFile = file;
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mAudio = audio;
+        if (audio != null) {
+            mHeaderSize = HEADER_SIZE + AUDIO_HEADER_SIZE;
+            mMoviOffset = MOVI_OFFSET + AUDIO_HEADER_SIZE;
+            mBlockAlign = audio.getChannelCount() * BITS_PER_SAMPLE / 8;
+            // A frame's worth of audio is the most written in one go until the end
+            mAudioBuffer = new byte[(audio.getSampleRate() / frameRate + 1) * mBlockAlign];
+        } else {
+            mHeaderSize = HEADER_SIZE;
+            mMoviOffset = MOVI_OFFSET;
+            mBlockAlign = 0;
+            mAudioBuffer = null;
+        }
+        mOut = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
+
+        // Placeholder headers, rewritten by close()
+        final ByteBuffer headers = writeHeaders(0, 0);
+        mOut.write(headers.array(), 0, headers.limit());
+        mPosition = mHeaderSize;
+    }
+
+    /**
+     * Append a frame.
+     *
+     * @param jpeg A buffer holding the JPEG data of the frame
+     * @param offset The offset of the JPEG in jpeg
+     * @param length The length of the JPEG
+     */
+    public void writeFrame(byte[] jpeg, int offset, int length) throws IOException {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Empty frame");
+        }
+        writeChunk(VIDEO_CHUNK, jpeg, offset, length, AVIIF_KEYFRAME);
+        mMaxFrameSize = Math.max(mMaxFrameSize, length);
+        endFrame();
+    }
+
+    /**
+     * Append frames that show the same picture as the frame before them.
+     *
+     * @param count The number of frames to append
+     */
+    public void repeatFrame(int count) throws IOException {
+        if (mFrameCount == 0) {
+            throw new IllegalStateException("No frame to repeat");
+        }
+        for (int i = 0; i < count; i++) {
+            writeChunk(VIDEO_CHUNK, null, 0, 0, 0);
+            endFrame();
+        }
+    }
+
+    /**
+     * @return The number of frames written so far
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Count a frame that has just been written, and follow it with the audio that plays while it
+     * is showing.
+     */
+    private void endFrame() throws IOException {
+        mFrameCount++;
+        if (mAudio != null) {
+            final long samples = (long) mFrameCount * mAudio.getSampleRate() / mFrameRate;
+            writeAudio(samples * mBlockAlign - mAudioBytes);
+        }
+    }
+
+    /**
+     * Write up to length bytes of audio, in chunks of at most the size of the audio buffer.
+     */
+    private void writeAudio(long length) throws IOException {
+        while (length > 0 && !mAudioEnded) {
+            final int chunkLength = readAudio((int) Math.min(length, mAudioBuffer.length));
+            if (chunkLength > 0) {
+                writeChunk(AUDIO_CHUNK, mAudioBuffer, 0, chunkLength, AVIIF_KEYFRAME);
+                mAudioBytes += chunkLength;
+                mMaxAudioChunkSize = Math.max(mMaxAudioChunkSize, chunkLength);
+                length -= chunkLength;
+            }
+        }
+    }
+
+    /**
+     * Fill the start of the audio buffer, stopping early only at the end of the audio.
+     *
+     * @return The number of bytes read, always a whole number of samples
+     */
+    private int readAudio(int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            final int read = mAudio.read(mAudioBuffer, count, length - count);
+            if (read < 0) {
+                mAudioEnded = true;
+                break;
+            }
+            count += read;
+        }
+        return count - count % mBlockAlign;
+    }
+
+    private void writeChunk(String fourCc, byte[] data, int offset, int length, int flags)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("Writer is closed");
+        }
+        final int padding = length & 1; // Chunks are word aligned
+        final long chunkSize = 8 + length + padding;
+        if (mPosition + chunkSize + mIndex.position() + INDEX_ENTRY_SIZE + 8 > MAX_FILE_SIZE) {
+            throw new IOException("Video is too long for an AVI file");
+        }
+
+        mChunkHeader.clear();
+        putFourCc(mChunkHeader, fourCc);
+        mChunkHeader.putInt(length);
+        mOut.write(mChunkHeader.array(), 0, 8);
+        if (length > 0) {
+            mOut.write(data, offset, length);
+        }
+        if (padding != 0) {
+            mOut.write(0);
+        }
+
+        if (mIndex.remaining() < INDEX_ENTRY_SIZE) {
+            final ByteBuffer index = newBuffer(mIndex.capacity() * 2);
+            mIndex.flip();
+            index.put(mIndex);
+            mIndex = index;
+        }
+        putFourCc(mIndex, fourCc);
+        mIndex.putInt(flags);
+        mIndex.putInt((int) (mPosition - mMoviOffset));
+        mIndex.putInt(length);
+
+        mPosition += chunkSize;
+    }
+
+    /**
+     * Write the index and the final headers. The file is complete once this returns.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mAudio != null) {
+                // The rest of the audio, which may run on a little past the last frame
+                writeAudio(Long.MAX_VALUE);
+            }
+            mChunkHeader.clear();
+            putFourCc(mChunkHeader, "idx1");
+            mChunkHeader.putInt(mIndex.position());
+            mOut.write(mChunkHeader.array(), 0, 8);
+            mOut.write(mIndex.array(), 0, mIndex.position());
+        } finally {
+            mClosed = true;
+            mOut.close();
+        }
+
+        final long moviSize = mPosition - mMoviOffset;
+        final long fileSize = mPosition + 8 + mIndex.position();
+        final ByteBuffer headers = writeHeaders(moviSize, fileSize);
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.write(headers.array(), 0, headers.limit());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Build the headers for the current frame count and amount of audio.
+     *
+     * @param moviSize The size of the 'movi' list
+     * @param fileSize The size of the whole file
+     */
+    private ByteBuffer writeHeaders(long moviSize, long fileSize) {
+        final ByteBuffer buffer = newBuffer(mHeaderSize);
+        final int bufferSize = (mMaxFrameSize + 8 + 1) & ~1;
+        final int audioBufferSize = (mMaxAudioChunkSize + 8 + 1) & ~1;
+        final int bytesPerSecond =
+                mAudio != null ? mAudio.getSampleRate() * mBlockAlign : 0;
+
+        putFourCc(buffer, "RIFF");
+        buffer.putInt((int) Math.max(0, fileSize - 8));
+        putFourCc(buffer, "AVI ");
+
+        putFourCc(buffer, "LIST");
+        buffer.putInt(192 + (mAudio != null ? AUDIO_HEADER_SIZE : 0));
+        putFourCc(buffer, "hdrl");
+
+        putFourCc(buffer, "avih");
+        buffer.putInt(56);
+        buffer.putInt(1000000 / mFrameRate); // dwMicroSecPerFrame
+        buffer.putInt(bufferSize * mFrameRate + bytesPerSecond); // dwMaxBytesPerSec
+        buffer.putInt(0); // dwPaddingGranularity
+        buffer.putInt(AVIF_HASINDEX); // dwFlags
+        buffer.putInt(mFrameCount); // dwTotalFrames
+        buffer.putInt(0); // dwInitialFrames
+        buffer.putInt(mAudio != null ? 2 : 1); // dwStreams
+        buffer.putInt(Math.max(bufferSize, audioBufferSize)); // dwSuggestedBufferSize
+        buffer.putInt(mWidth);
+        buffer.putInt(mHeight);
+        buffer.putInt(0); // dwReserved
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+
+        putFourCc(buffer, "LIST");
+        buffer.putInt(116);
+        putFourCc(buffer, "strl");
+
+        putFourCc(buffer, "strh");
+        buffer.putInt(56);
+        putFourCc(buffer, "vids"); // fccType
+        putFourCc(buffer, "MJPG"); // fccHandler
+        buffer.putInt(0); // dwFlags
+        buffer.putShort((short) 0); // wPriority
+        buffer.putShort((short) 0); // wLanguage
+        buffer.putInt(0); // dwInitialFrames
+        buffer.putInt(1); // dwScale
+        buffer.putInt(mFrameRate); // dwRate
+        buffer.putInt(0); // dwStart
+        buffer.putInt(mFrameCount); // dwLength
+        buffer.putInt(bufferSize); // dwSuggestedBufferSize
+        buffer.putInt(-1); // dwQuality, default
+        buffer.putInt(0); // dwSampleSize, frames vary in size
+        buffer.putShort((short) 0); // rcFrame
+        buffer.putShort((short) 0);
+        buffer.putShort((short) mWidth);
+        buffer.putShort((short) mHeight);
+
+        putFourCc(buffer, "strf");
+        buffer.putInt(40);
+        buffer.putInt(40); // biSize
+        buffer.putInt(mWidth);
+        buffer.putInt(mHeight);
+        buffer.putShort((short) 1); // biPlanes
+        buffer.putShort((short) 24); // biBitCount
+        putFourCc(buffer, "MJPG"); // biCompression
+        buffer.putInt(mWidth * mHeight * 3); // biSizeImage
+        buffer.putInt(0); // biXPelsPerMeter
+        buffer.putInt(0); // biYPelsPerMeter
+        buffer.putInt(0); // biClrUsed
+        buffer.putInt(0); // biClrImportant
+
+        if (mAudio != null) {
+            putFourCc(buffer, "LIST");
+            buffer.putInt(AUDIO_HEADER_SIZE - 8);
+            putFourCc(buffer, "strl");
+
+            putFourCc(buffer, "strh");
+            buffer.putInt(56);
+            putFourCc(buffer, "auds"); // fccType
+            buffer.putInt(0); // fccHandler
+            buffer.putInt(0); // dwFlags
+            buffer.putShort((short) 0); // wPriority
+            buffer.putShort((short) 0); // wLanguage
+            buffer.putInt(0); // dwInitialFrames
+            buffer.putInt(mBlockAlign); // dwScale
+            buffer.putInt(bytesPerSecond); // dwRate, so dwRate / dwScale is the sample rate
+            buffer.putInt(0); // dwStart
+            buffer.putInt((int) (mAudioBytes / mBlockAlign)); // dwLength, in samples
+            buffer.putInt(audioBufferSize); // dwSuggestedBufferSize
+            buffer.putInt(-1); // dwQuality, default
+            buffer.putInt(mBlockAlign); // dwSampleSize
+            buffer.putShort((short) 0); // rcFrame
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+
+            putFourCc(buffer, "strf");
+            buffer.putInt(18);
+            buffer.putShort((short) WAVE_FORMAT_PCM); // wFormatTag
+            buffer.putShort((short) mAudio.getChannelCount()); // nChannels
+            buffer.putInt(mAudio.getSampleRate()); // nSamplesPerSec
+            buffer.putInt(bytesPerSecond); // nAvgBytesPerSec
+            buffer.putShort((short) mBlockAlign); // nBlockAlign
+            buffer.putShort((short) BITS_PER_SAMPLE); // wBitsPerSample
+            buffer.putShort((short) 0); // cbSize
+        }
+
+        putFourCc(buffer, "LIST");
+        buffer.putInt((int) Math.max(4, moviSize));
+        putFourCc(buffer, "movi");
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putFourCc(ByteBuffer buffer, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCc.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.jamie.picturestory;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A pool of bitmaps that are no longer displayed or cached and whose memory can be reused for the
+ * next decode (see {@link BitmapFactory.Options#inBitmap}). Bitmaps are bucketed by width, height
+ * and config since, up to Jelly Bean, a bitmap can only be reused to decode an image of exactly
+ * the same size. The pool has its own byte budget, separate from the memory cache, and drops the
+ * least recently pooled bitmaps when it goes over it.
+ *
+ * Each time a bitmap is handed out for reuse its reuse count goes up, which lets anything still
+ * holding on to a bitmap tell whether its pixels have since been overwritten.
+ *
+ * Bitmap reuse was only added in Honeycomb, so on older devices the pool never accepts anything.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private final int mMaxSize;
+    private int mSize = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mPutCount = 0;
+    private int mEvictionCount = 0;
+
+    // Guarded by this
+    private final HashMap<Long, LinkedList<Bitmap>> mBuckets =
+            new HashMap<Long, LinkedList<Bitmap>>();
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>(); // Least recently pooled first
+    private final WeakHashMap<Bitmap, Integer> mReuseCounts = new WeakHashMap<Bitmap, Integer>();
+
+    /**
+     * @param maxSize The maximum number of bytes of bitmaps to hold on to
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return true if this device supports decoding into an existing bitmap
+     */
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Offer a bitmap to the pool. The caller must make sure nothing else is still using the bitmap
+     * as its pixels will be overwritten by a later decode.
+     *
+     * @param bitmap The bitmap to reuse
+     * @return true if the bitmap was added to the pool
+     */
+    public boolean put(Bitmap bitmap) {
+        if (!isReuseSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+
+        final int size = Utils.getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mLru.contains(bitmap)) {
+                return false;
+            }
+            final Long key =
+                    getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.addLast(bitmap);
+            mLru.addLast(bitmap);
+            mSize += size;
+            mPutCount++;
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Take a bitmap with exactly the given dimensions and config out of the pool.
+     *
+     * @return A bitmap that can be decoded into, or null if there isn't one
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final LinkedList<Bitmap> bucket = mBuckets.get(getBucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.removeLast();
+        mLru.remove(bitmap);
+        mSize -= Utils.getBitmapSize(bitmap);
+        mHitCount++;
+        mReuseCounts.put(bitmap, getReuseCount(bitmap) + 1);
+        return bitmap;
+    }
+
+    /**
+     * @return The number of times bitmap has been handed out by
+     *         {@link #get(int, int, Bitmap.Config)}
+     */
+    public synchronized int getReuseCount(Bitmap bitmap) {
+        final Integer count = mReuseCounts.get(bitmap);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Take a particular bitmap back for its original contents, as long as it hasn't been handed
+     * out for reuse since. If it is in the pool it is removed.
+     *
+     * @param bitmap The bitmap to take back
+     * @param reuseCount The reuse count of the bitmap when its contents were last valid
+     * @return true if the bitmap still has its original contents
+     */
+    public synchronized boolean reclaim(Bitmap bitmap, int reuseCount) {
+        if (getReuseCount(bitmap) != reuseCount) {
+            return false;
+        }
+        if (mLru.remove(bitmap)) {
+            mBuckets.get(getBucketKey(
+                    bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+            mSize -= Utils.getBitmapSize(bitmap);
+        }
+        return true;
+    }
+
+    /**
+     * Drop pooled bitmaps, least recently pooled first, until the pool is at most maxSize bytes.
+     *
+     * @param maxSize
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mLru.isEmpty()) {
+            final Bitmap eldest = mLru.removeFirst();
+            mBuckets.get(getBucketKey(
+                    eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+            mSize -= Utils.getBitmapSize(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",puts=" + mPutCount + ",evictions=" + mEvictionCount
+                + "]";
+    }
+
+    private static Long getBucketKey(int width, int height, Bitmap.Config config) {
+        final int configOrdinal = config != null ? config.ordinal() + 1 : 0;
+        return Long.valueOf(((long) width << 32) | ((long) height << 8) | configOrdinal);
+    }
+
+    /**
+     * Set up decode options so that the decoded bitmap can later be added to a pool and, if
+     * possible, reuses a bitmap from the given pool. Must be called after the image bounds and
+     * inSampleSize have been set in options. Decodes that are given an inBitmap can fail with an
+     * IllegalArgumentException if the image turns out not to fit, callers should catch that and
+     * decode again without one.
+     *
+     * @param options Options with outWidth, outHeight and inSampleSize populated
+     * @param pool The pool to take a bitmap from, may be null
+     */
+    @SuppressLint("NewApi")
+    public static void addInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+        if (!isReuseSupported()) {
+            return;
+        }
+
+        // Decoded bitmaps must be mutable to be reused later
+        options.inMutable = true;
+
+        // Before KitKat only images decoded at their full size can reuse a bitmap
+        if (pool != null && options.outWidth > 0 && options.inSampleSize <= 1) {
+            final Bitmap.Config config = options.inPreferredConfig != null
+                    ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+            final Bitmap inBitmap = pool.get(options.outWidth, options.outHeight, config);
+            if (inBitmap != null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "addInBitmapOptions - reusing bitmap from pool");
+                }
+                options.inBitmap = inBitmap;
+            }
+        }
+    }
+
+    /**
+     * Undo {@link #addInBitmapOptions(BitmapFactory.Options, BitmapPool)} choosing a bitmap to
+     * reuse, so that a decode that failed with it can be retried into a new bitmap.
+     *
+     * @param options Options previously passed to addInBitmapOptions
+     */
+    @SuppressLint("NewApi")
+    public static void removeInBitmapOptions(BitmapFactory.Options options) {
+        if (isReuseSupported()) {
+            options.inBitmap = null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.jamie.picturestory;
+
+/**
+ * Decides which images passed to an {@link ImageWorker} are the same image. Two pieces of data that
+ * resolve to the same identity share their disk cache entry, so an identity should cover everything
+ * about the source that changes the decoded pixels, such as when the image was last modified.
+ */
+public interface CacheKeyStrategy {
+
+    /**
+     * Resolve data to the identity of the image it refers to. This is called on a background
+     * thread for every load that misses the memory cache, so it may touch the disk.
+     *
+     * @param data The data identifying the image, as passed to
+     *            {@link ImageWorker#loadImage(Object, android.widget.ImageView)}
+     * @return The identity of the image
+     */
+    String getIdentity(Object data);
+}
@@ -0,0 +1,154 @@
+package com.jamie.picturestory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Identifies images by where their pixels actually live rather than by the Uri used to reach them.
+ * Files are identified by their canonical path, and media store Uris are looked up and identified
+ * by the file they point to, so a photo opened through a file Uri from the camera and through its
+ * content Uri from the gallery is only decoded and cached once. When the media store has no file
+ * for an image it is identified by its Uri path instead. Either way the identity includes the time
+ * the image was last modified, so an image that is edited is decoded again rather than served
+ * stale from the cache.
+ *
+ * Resolving a media Uri needs a query, so resolutions are remembered. Files are cheap to check, so
+ * their modification time is read every time; media without a file are looked up again once their
+ * resolution is MEDIA_MEMO_TTL old.
+ */
+public class CanonicalCacheKeyStrategy implements CacheKeyStrategy {
+    private static final String TAG = "CanonicalCacheKeyStrategy";
+
+    private static final String FILE_URI_PREFIX = "file://";
+    private static final int MAX_MEMO_ENTRIES = 256;
+    private static final long MEDIA_MEMO_TTL = 30 * 1000;
+
+    private static final String[] MEDIA_PROJECTION = {
+            MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED };
+
+    private final ContentResolver mResolver;
+
+    // Resolutions keyed by the string value of the data. Guarded by itself.
+    private final Map<String, Resolution> mMemo =
+            new LinkedHashMap<String, Resolution>(32, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+                    return size() > MAX_MEMO_ENTRIES;
+                }
+            };
+
+    /**
+     * @param resolver The resolver to look up media store Uris with
+     */
+    public CanonicalCacheKeyStrategy(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public String getIdentity(Object data) {
+        final String source = String.valueOf(data);
+        final long now = SystemClock.uptimeMillis();
+
+        Resolution resolution;
+        synchronized (mMemo) {
+            resolution = mMemo.get(source);
+        }
+        if (resolution == null
+                || (resolution.path == null && now - resolution.resolvedAt > MEDIA_MEMO_TTL)) {
+            resolution = resolve(source, now);
+            synchronized (mMemo) {
+                mMemo.put(source, resolution);
+            }
+        }
+
+        if (resolution.path != null) {
+            return FILE_URI_PREFIX + resolution.path + '@'
+                    + new File(resolution.path).lastModified();
+        }
+        return resolution.identity;
+    }
+
+    /**
+     * Forget all remembered resolutions, for example after the media store has been rescanned.
+     */
+    public void clear() {
+        synchronized (mMemo) {
+            mMemo.clear();
+        }
+    }
+
+    private Resolution resolve(String source, long now) {
+        // File Uris are handled as strings, in the same way ImageResizer decodes them, as paths
+        // aren't escaped and may contain characters that Uri.parse() would misread
+        if (source.startsWith(FILE_URI_PREFIX)) {
+            return Resolution.forFile(source.substring(FILE_URI_PREFIX.length()), now);
+        } else if (source.startsWith(File.separator)) {
+            return Resolution.forFile(source, now);
+        }
+
+        final Uri uri = Uri.parse(source);
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                && MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return resolveMedia(uri, source, now);
+        }
+        return new Resolution(null, source, now);
+    }
+
+    private Resolution resolveMedia(Uri uri, String source, long now) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, MEDIA_PROJECTION, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                final String path = cursor.getString(0);
+                if (path != null && new File(path).isFile()) {
+                    return Resolution.forFile(path, now);
+                }
+                return new Resolution(null, "media:" + uri.getPath() + '@' + cursor.getLong(1),
+                        now);
+            }
+        } catch (final SecurityException e) {
+            Log.e(TAG, "Error in resolveMedia: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new Resolution(null, source, now);
+    }
+
+    private static class Resolution {
+        // The canonical path of the file holding the image, or null if there isn't one
+        final String path;
+        // The identity to use when there is no file
+        final String identity;
+        final long resolvedAt;
+
+        Resolution(String path, String identity, long resolvedAt) {
+            this.path = path;
+            this.identity = identity;
+            this.resolvedAt = resolvedAt;
+        }
+
+        static Resolution forFile(String path, long resolvedAt) {
+            String canonicalPath;
+            try {
+                // Resolves symlinks such as /sdcard, which the media store doesn't use
+                canonicalPath = new File(path).getCanonicalPath();
+            } catch (final IOException e) {
+                canonicalPath = path;
+            }
+            return new Resolution(canonicalPath, null, resolvedAt);
+        }
+    }
+}
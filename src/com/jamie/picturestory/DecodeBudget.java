@@ -0,0 +1,115 @@
+package com.jamie.picturestory;
+
+import java.util.concurrent.Semaphore;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Caps the memory used by decodes that are running at the same time. Each decode acquires the
+ * number of bytes its bitmap will take before decoding and releases them afterwards, so any number
+ * of threads can decode at once as long as the total stays under the budget. The budget is counted
+ * in KB so that even large heaps fit in the semaphore.
+ *
+ * A single decode larger than the whole budget is clamped to the budget, so it waits for every
+ * other decode to finish and then runs alone rather than never running at all.
+ */
+public class DecodeBudget {
+    private static final String TAG = "DecodeBudget";
+
+    // The fraction of the app's heap that in-flight decodes may take up
+    private static final int HEAP_FRACTION = 4;
+
+    private static DecodeBudget sInstance;
+
+    private final Semaphore mPermits;
+    private final int mTotalKb;
+
+    /**
+     * @param totalBytes The maximum number of bytes that may be held by in-flight decodes
+     */
+    public DecodeBudget(long totalBytes) {
+        mTotalKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, totalBytes / 1024));
+        mPermits = new Semaphore(mTotalKb, true);
+    }
+
+    /**
+     * Get the budget shared by every decode in the process, sized from the app's memory class.
+     *
+     * @param context
+     * @return The shared budget
+     */
+    public static synchronized DecodeBudget getInstance(Context context) {
+        if (sInstance == null) {
+            final long heapBytes = 1024L * 1024L * Utils.getMemoryClass(context);
+            sInstance = new DecodeBudget(heapBytes / HEAP_FRACTION);
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Decode budget set to " + sInstance.mTotalKb + "KB");
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Block until the given number of bytes are available and take them. Every call must be
+     * matched with a call to {@link #release(int)} with the value returned here.
+     *
+     * @param bytes The number of bytes the decode will use
+     * @return The amount that was taken, to pass to {@link #release(int)}
+     */
+    public int acquire(long bytes) {
+        final int kb = (int) Math.max(1, Math.min(mTotalKb, (bytes + 1023) / 1024));
+        mPermits.acquireUninterruptibly(kb);
+        return kb;
+    }
+
+    /**
+     * Give back memory taken by {@link #acquire(long)}.
+     *
+     * @param acquired The value returned by acquire
+     */
+    public void release(int acquired) {
+        mPermits.release(acquired);
+    }
+
+    /**
+     * @return The number of bytes not currently taken by decodes
+     */
+    public long getAvailableBytes() {
+        return mPermits.availablePermits() * 1024L;
+    }
+
+    /**
+     * @return The total number of bytes in the budget
+     */
+    public long getTotalBytes() {
+        return mTotalKb * 1024L;
+    }
+
+    /**
+     * Estimate how much memory decoding an image will take.
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param inSampleSize The sample size the image will be decoded with
+     * @param config The config of the decoded bitmap, or null for the default
+     * @return The size in bytes of the decoded bitmap
+     */
+    public static long estimateBytes(int width, int height, int inSampleSize,
+            Bitmap.Config config) {
+        final int sampleSize = Math.max(1, inSampleSize);
+        final long sampledWidth = (width + sampleSize - 1) / sampleSize;
+        final long sampledHeight = (height + sampleSize - 1) / sampleSize;
+        return sampledWidth * sampledHeight * getBytesPerPixel(config);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
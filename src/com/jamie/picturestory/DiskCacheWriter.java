@@ -0,0 +1,181 @@
+package com.jamie.picturestory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Writes bitmaps to a {@link DiskLruCache} from a single dedicated background thread so that the
+ * thread that produced the bitmap doesn't have to wait for it to be compressed and written.
+ *
+ * Pending writes are kept in a bounded queue. Queuing a key that is already pending is a no-op, and
+ * when the queue is full the oldest pending write is dropped - it's only a cache, so losing a write
+ * just means the image will be processed again next time.
+ */
+public class DiskCacheWriter {
+    private static final String TAG = "DiskCacheWriter";
+
+    private final DiskLruCache mDiskCache;
+    private final int mMaxPending;
+
+    // Guarded by itself
+    private final LinkedHashMap<String, Bitmap> mPending = new LinkedHashMap<String, Bitmap>();
+    private String mWritingKey;
+    private Bitmap mWritingBitmap;
+    private boolean mClosed = false;
+    private int mDroppedCount = 0;
+
+    /**
+     * Create a writer and start its thread.
+     *
+     * @param diskCache The disk cache to write to
+     * @param maxPending The maximum number of writes that may be queued at once
+     */
+    public DiskCacheWriter(DiskLruCache diskCache, int maxPending) {
+        mDiskCache = diskCache;
+        mMaxPending = Math.max(1, maxPending);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                processQueue();
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * Queue a bitmap to be written to the disk cache.
+     *
+     * @param key A unique identifier for the bitmap
+     * @param bitmap The bitmap to store
+     */
+    public void enqueue(String key, Bitmap bitmap) {
+        synchronized (mPending) {
+            if (mClosed || mPending.containsKey(key) || key.equals(mWritingKey)) {
+                return;
+            }
+
+            if (mPending.size() >= mMaxPending) {
+                final Iterator<Map.Entry<String, Bitmap>> it = mPending.entrySet().iterator();
+                final String droppedKey = it.next().getKey();
+                it.remove();
+                mDroppedCount++;
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "enqueue - queue full, dropped write for " + droppedKey);
+                }
+            }
+
+            mPending.put(key, bitmap);
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Get a bitmap that is queued (or currently being written) but hasn't reached the disk cache
+     * yet.
+     *
+     * @param key The unique identifier for the bitmap
+     * @return The bitmap or null if no write is pending for key
+     */
+    public Bitmap getPending(String key) {
+        synchronized (mPending) {
+            if (key.equals(mWritingKey)) {
+                return mWritingBitmap;
+            }
+            return mPending.get(key);
+        }
+    }
+
+    /**
+     * @return true if bitmap is queued or currently being written
+     */
+    public boolean isPending(Bitmap bitmap) {
+        synchronized (mPending) {
+            return bitmap == mWritingBitmap || mPending.containsValue(bitmap);
+        }
+    }
+
+    /**
+     * Discard all writes that haven't started yet.
+     */
+    public void clear() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Block until every write that was queued before this call has been written.
+     */
+    public void flush() {
+        synchronized (mPending) {
+            while (!mPending.isEmpty() || mWritingKey != null) {
+                try {
+                    mPending.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting writes. The writer thread finishes writing whatever is still queued and then
+     * closes the disk cache, so this doesn't block the caller.
+     */
+    public void close() {
+        synchronized (mPending) {
+            mClosed = true;
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of writes that were dropped because the queue was full
+     */
+    public int getDroppedCount() {
+        synchronized (mPending) {
+            return mDroppedCount;
+        }
+    }
+
+    private void processQueue() {
+        while (true) {
+            synchronized (mPending) {
+                mWritingKey = null;
+                mWritingBitmap = null;
+                mPending.notifyAll();
+
+                while (mPending.isEmpty() && !mClosed) {
+                    try {
+                        mPending.wait();
+                    } catch (final InterruptedException e) {
+                        // Ignore, only close() stops the writer
+                    }
+                }
+                if (mPending.isEmpty()) {
+                    break; // Closed and drained
+                }
+
+                final Iterator<Map.Entry<String, Bitmap>> it = mPending.entrySet().iterator();
+                final Map.Entry<String, Bitmap> next = it.next();
+                it.remove();
+                mWritingKey = next.getKey();
+                mWritingBitmap = next.getValue();
+            }
+
+            mDiskCache.put(mWritingKey, mWritingBitmap);
+        }
+
+        mDiskCache.close();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "processQueue - flushed and closed disk cache");
+        }
+    }
+}
@@ -16,19 +16,42 @@
 
 package com.jamie.picturestory;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -38,30 +61,145 @@ import android.os.Environment;
 import android.util.Log;
 
 /**
- * A simple disk LRU bitmap cache to illustrate how a disk cache would be used for bitmap caching. A
- * much more robust and efficient disk LRU cache solution can be found in the ICS source code
- * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java) and is preferable to this simple
- * implementation.
+ * A simple disk LRU bitmap cache to illustrate how a disk cache would be used for bitmap caching.
+ *
+ * The LRU order and size of every entry is persisted to an append-only journal in the cache
+ * directory so that the cache can be rebuilt exactly in a single sequential read when it is
+ * reopened. Each line of the journal is one of:
+ * <ul>
+ * <li>{@code CLEAN key size name crc} - the entry for key was successfully written to the file
+ * called name, is size bytes long and has the given CRC32 (in hex).
+ * <li>{@code DIRTY key name} - the entry for key is being written to the file called name. Must be
+ * followed by a CLEAN or REMOVE line for the same key, otherwise the file is deleted when the
+ * journal is replayed. Compaction keeps the DIRTY lines of entries that are still being written.
+ * <li>{@code REMOVE key} - the entry for key was evicted or removed.
+ * <li>{@code READ key} - the entry for key was accessed and moves to the head of the LRU order.
+ * </ul>
+ * Keys are URL encoded so that they never contain spaces. Once the journal accumulates enough
+ * redundant lines it is compacted on a background thread.
+ *
+ * Entries are written to a temporary file that is only renamed into place once it is complete, so
+ * a crash can never leave a partially written file under an entry's name. The first time an entry
+ * written by an earlier run is read, its size and checksum are verified against the journal;
+ * entries that fail are removed and their files moved to a quarantine directory for inspection.
+ * When the cache is opened, any files in the shard directories that the journal doesn't account
+ * for (left behind by a crash part way through a write or an eviction) are deleted.
+ *
+ * Files are named after the MD5 hash of their key, so names have a fixed length however long the
+ * key is, and are spread over two levels of shard directories named after the first two pairs of
+ * hex digits so that no one directory gets too big. The journal records each entry's file name,
+ * which makes it the side table from keys to files: lookups go through it rather than hashing
+ * again, and in the unlikely event of two keys hashing the same, the second file just gets a
+ * suffix.
+ *
+ * Entries are stored either compressed (see {@link #setCompressParams(CompressFormat, int)}) or as
+ * raw pixels (see {@link #setRawParams(boolean, boolean)}). Each file is recognised by its header
+ * when read, so changing the format doesn't invalidate existing entries.
+ *
+ * The cache is safe to use from multiple threads. Bitmap encodes and decodes run outside of the
+ * index lock so only index updates, journal writes and eviction are serialized.
  */
 public class DiskLruCache {
     private static final String TAG = "DiskLruCache";
     private static final String CACHE_FILENAME_PREFIX = "cache_";
-    private static final int MAX_REMOVALS = 4;
+    private static final int SHARD_NAME_LENGTH = 2;
+    private static final int SHARD_LEVELS = 2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int DEFAULT_MAX_ITEM_COUNT = 64;
     private static final int INITIAL_CAPACITY = 32;
     private static final float LOAD_FACTOR = 0.75f;
 
+    // Rough ratio of pixel bytes to compressed bytes, used to size the encode buffer
+    private static final int ESTIMATED_COMPRESSION_RATIO = 8;
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String QUARANTINE_DIR = "quarantine";
+    static final String MAGIC = "com.jamie.picturestory.DiskLruCache";
+    static final String VERSION = "3";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // Number of corrupt files to keep in the quarantine directory
+    private static final int MAX_QUARANTINED_FILES = 8;
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    // Compact the journal once it holds this many lines that don't describe a live entry
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
     private final File mCacheDir;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
     private int cacheSize = 0;
-    private int cacheByteSize = 0;
-    private final int maxCacheItemSize = 64; // 64 item default
+    private long cacheByteSize = 0;
+    private int maxCacheItemSize = DEFAULT_MAX_ITEM_COUNT;
     private long maxCacheByteSize = 1024 * 1024 * 5; // 5MB default
     private CompressFormat mCompressFormat = CompressFormat.JPEG;
     private int mCompressQuality = 70;
+    private boolean mRawFormat = false;
+    private boolean mRawDeflate = true;
+    private BitmapPool mBitmapPool;
 
-    private final Map<String, String> mLinkedHashMap =
-            Collections.synchronizedMap(new LinkedHashMap<String, String>(
+    // Entries removed to keep the cache within its limits. Guarded by mLinkedHashMap.
+    private int mEvictionCount;
+    private long mEvictedByteCount;
+
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+    private boolean mCompactionPending;
+    private boolean mTrimPending;
+
+    // Number of lock stripes used to serialize writers of the same key
+    private static final int KEY_LOCK_STRIPES = 16;
+
+    private final Map<String, CacheEntry> mLinkedHashMap =
+            Collections.synchronizedMap(new LinkedHashMap<String, CacheEntry>(
                     INITIAL_CAPACITY, LOAD_FACTOR, true));
 
+    // The file names of the entries being written by put(), by key. Guarded by mLinkedHashMap.
+    private final Map<String, String> mWriting = new HashMap<String, String>();
+
+    /**
+     * Writers of a key hold the stripe lock for that key for the whole write. The index lock
+     * (mLinkedHashMap) is only held while the index and journal are updated.
+     */
+    private final Object[] mKeyLocks = new Object[KEY_LOCK_STRIPES];
+
+    /**
+     * A single background thread used to compact the journal and trim the cache. The thread is
+     * allowed to die when idle so an unused cache doesn't hold on to it.
+     */
+    private final ExecutorService mCompactionExecutor = new ThreadPoolExecutor(
+            0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Runnable mCompactionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLinkedHashMap) {
+                mCompactionPending = false;
+                if (mJournalWriter == null) {
+                    return; // Closed
+                }
+                try {
+                    rebuildJournal();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error compacting journal: " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimToSize();
+        }
+    };
+
     /**
      * A filename filter to use to identify the cache filenames which have CACHE_FILENAME_PREFIX
      * prepended.
@@ -74,7 +212,27 @@ public class DiskLruCache {
     };
 
     /**
-     * Used to fetch an instance of DiskLruCache.
+     * A filename filter to identify the shard directories, named with SHARD_NAME_LENGTH hex
+     * digits.
+     */
+    private static final FilenameFilter shardDirFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            if (filename.length() != SHARD_NAME_LENGTH) {
+                return false;
+            }
+            for (int i = 0; i < filename.length(); i++) {
+                if (Character.digit(filename.charAt(i), 16) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Used to fetch an instance of DiskLruCache. If the cache directory contains a journal, the
+     * LRU order and sizes of the existing entries are restored from it.
      *
      * @param context
      * @param cacheDir
@@ -88,7 +246,32 @@ public class DiskLruCache {
 
         if (cacheDir.isDirectory() && cacheDir.canWrite()
                 && Utils.getUsableSpace(cacheDir) > maxByteSize) {
-            return new DiskLruCache(cacheDir, maxByteSize);
+            DiskLruCache cache = new DiskLruCache(cacheDir, maxByteSize);
+            if (cache.mJournalFile.exists()) {
+                try {
+                    cache.readJournal();
+                    cache.deleteOrphanedFiles();
+                    cache.openJournalWriter();
+                    // The limits may have been lowered since the journal was written
+                    synchronized (cache.mLinkedHashMap) {
+                        cache.scheduleTrim();
+                    }
+                    return cache;
+                } catch (final IOException e) {
+                    Log.e(TAG, "Journal is corrupt, clearing cache: " + e.getMessage());
+                }
+            }
+
+            // No (usable) journal. Files left without one can't be ordered or sized, so start
+            // from an empty directory.
+            cache = new DiskLruCache(cacheDir, maxByteSize);
+            try {
+                clearCache(cacheDir);
+                cache.rebuildJournal();
+                return cache;
+            } catch (final IOException e) {
+                Log.e(TAG, "Error creating journal: " + e.getMessage());
+            }
         }
 
         return null;
@@ -104,7 +287,244 @@ public class DiskLruCache {
      */
     private DiskLruCache(File cacheDir, long maxByteSize) {
         mCacheDir = cacheDir;
+        mJournalFile = new File(cacheDir, JOURNAL_FILE);
+        mJournalFileTmp = new File(cacheDir, JOURNAL_FILE_TMP);
         maxCacheByteSize = maxByteSize;
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new Object();
+        }
+    }
+
+    private Object getKeyLock(String key) {
+        // Spread the hash bits so that similar keys don't all land on the same stripe
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mKeyLocks[h & (KEY_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Replays the journal into the in-memory index in one sequential read. Entries that were
+     * left DIRTY (i.e. the app died mid-write) have their files deleted.
+     */
+    private void readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournalFile), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            final String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + blank + "]");
+            }
+
+            final Map<String, String> dirtyKeys = new HashMap<String, String>();
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line, dirtyKeys);
+                lineCount++;
+            }
+
+            for (Entry<String, String> dirty : dirtyKeys.entrySet()) {
+                final CacheEntry entry = mLinkedHashMap.remove(dirty.getKey());
+                if (entry != null) {
+                    cacheByteSize -= entry.size;
+                }
+                final File file = getEntryFile(dirty.getValue());
+                file.delete();
+                getTempFile(file).delete();
+            }
+
+            cacheSize = mLinkedHashMap.size();
+            mRedundantOpCount = lineCount - cacheSize;
+        } finally {
+            reader.close();
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "readJournal - restored " + cacheSize + " entries, " + cacheByteSize
+                    + " bytes");
+        }
+    }
+
+    private void readJournalLine(String line, Map<String, String> dirtyKeys) throws IOException {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            // Most likely a partial line written as the app died. Skip it.
+            Log.e(TAG, "readJournal - skipping malformed line: " + line);
+            return;
+        }
+
+        final String key;
+        try {
+            key = URLDecoder.decode(parts[1], "UTF-8");
+        } catch (final IllegalArgumentException e) {
+            Log.e(TAG, "readJournal - skipping malformed line: " + line);
+            return;
+        }
+        if (CLEAN.equals(parts[0]) && parts.length == 5) {
+            final long size;
+            final long crc;
+            try {
+                size = Long.parseLong(parts[2]);
+                crc = Long.parseLong(parts[4], 16);
+            } catch (final NumberFormatException e) {
+                Log.e(TAG, "readJournal - skipping malformed line: " + line);
+                return;
+            }
+            // Entries from the journal haven't been checked against their files yet
+            final CacheEntry previous =
+                    mLinkedHashMap.put(key, newEntry(parts[3], size, crc, false));
+            if (previous != null) {
+                cacheByteSize -= previous.size;
+            }
+            cacheByteSize += size;
+            dirtyKeys.remove(key);
+        } else if (DIRTY.equals(parts[0]) && parts.length == 3) {
+            dirtyKeys.put(key, parts[2]);
+        } else if (REMOVE.equals(parts[0])) {
+            final CacheEntry entry = mLinkedHashMap.remove(key);
+            if (entry != null) {
+                cacheByteSize -= entry.size;
+            }
+            dirtyKeys.remove(key);
+        } else if (READ.equals(parts[0])) {
+            // Touch the entry so it moves to the head of the access order
+            mLinkedHashMap.get(key);
+        } else {
+            Log.e(TAG, "readJournal - skipping malformed line: " + line);
+        }
+    }
+
+    /**
+     * Delete the files in the shard directories that aren't in the index: temporary files from
+     * writes that never finished and the files of entries that were removed in the journal but not
+     * yet deleted when the app died. Must only be called while opening the cache.
+     */
+    private void deleteOrphanedFiles() {
+        final Set<String> liveFiles = new HashSet<String>();
+        for (CacheEntry entry : mLinkedHashMap.values()) {
+            liveFiles.add(entry.file);
+        }
+        final int deleted = deleteOrphanedFiles(mCacheDir, SHARD_LEVELS, liveFiles);
+        if (BuildConfig.DEBUG && deleted > 0) {
+            Log.d(TAG, "deleteOrphanedFiles - deleted " + deleted + " files");
+        }
+    }
+
+    private static int deleteOrphanedFiles(File dir, int shardLevels, Set<String> liveFiles) {
+        int deleted = 0;
+        if (shardLevels > 0) {
+            final File[] shards = dir.listFiles(shardDirFilter);
+            if (shards != null) {
+                for (File shard : shards) {
+                    deleted += deleteOrphanedFiles(shard, shardLevels - 1, liveFiles);
+                }
+            }
+            return deleted;
+        }
+
+        // Temporary files have the cache file prefix too, and are never in the index
+        final File[] files = dir.listFiles(cacheFileFilter);
+        if (files != null) {
+            for (File file : files) {
+                if (!liveFiles.contains(file.getPath()) && file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private void openJournalWriter() throws IOException {
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFile, true), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Writes a new journal containing only the live entries, in LRU order, followed by the entries
+     * still being written, and atomically replaces the current one with it. Must be called with
+     * the index lock held.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFileTmp), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n\n");
+            for (Entry<String, CacheEntry> entry : mLinkedHashMap.entrySet()) {
+                writer.write(formatRecord(CLEAN, entry.getKey(), entry.getValue()));
+            }
+            // Without these, a crash before the writes finish would leave their files unknown to
+            // the journal
+            for (Entry<String, String> writing : mWriting.entrySet()) {
+                writer.write(formatRecord(DIRTY, writing.getKey(),
+                        newEntry(writing.getValue(), 0, 0, false)));
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("unable to replace journal");
+        }
+        mRedundantOpCount = 0;
+        openJournalWriter();
+    }
+
+    /**
+     * Appends a record to the journal. Must be called with the index lock held.
+     *
+     * @param op One of CLEAN, DIRTY, REMOVE or READ
+     * @param key The (unencoded) entry key
+     * @param entry The entry, only needed for CLEAN and DIRTY records
+     */
+    private void journal(String op, String key, CacheEntry entry) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(formatRecord(op, key, entry));
+            // READ records only affect ordering so it's fine to lose the last few of them
+            if (!READ.equals(op)) {
+                mJournalWriter.flush();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error writing journal: " + e.getMessage());
+        }
+
+        if (!CLEAN.equals(op)) {
+            mRedundantOpCount++;
+        }
+        if (!mCompactionPending && mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mLinkedHashMap.size()) {
+            mCompactionPending = true;
+            mCompactionExecutor.execute(mCompactionRunnable);
+        }
+    }
+
+    private static String formatRecord(String op, String key, CacheEntry entry)
+            throws UnsupportedEncodingException {
+        if (CLEAN.equals(op)) {
+            return op + ' ' + encodeKey(key) + ' ' + entry.size + ' ' + entry.name + ' '
+                    + Long.toHexString(entry.crc) + '\n';
+        } else if (DIRTY.equals(op)) {
+            return op + ' ' + encodeKey(key) + ' ' + entry.name + '\n';
+        }
+        return op + ' ' + encodeKey(key) + '\n';
+    }
+
+    private static String encodeKey(String key) throws UnsupportedEncodingException {
+        return URLEncoder.encode(key, "UTF-8");
     }
 
     /**
@@ -114,55 +534,170 @@ public class DiskLruCache {
      * @param data The bitmap to store.
      */
     public void put(String key, Bitmap data) {
-        synchronized (mLinkedHashMap) {
-            if (mLinkedHashMap.get(key) == null) {
-                try {
-                    final String file = createFilePath(mCacheDir, key);
-                    if (writeBitmapToFile(data, file)) {
-                        put(key, file);
-                        flushCache();
-                    }
-                } catch (final FileNotFoundException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
-                } catch (final IOException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
+        // Only one thread at a time writes a given key, but the (slow) encode happens outside the
+        // index lock so that reads and writes of other keys aren't held up behind it
+        synchronized (getKeyLock(key)) {
+            final String name;
+            synchronized (mLinkedHashMap) {
+                if (mJournalWriter == null || mLinkedHashMap.containsKey(key)) {
+                    return;
+                }
+                name = allocateFileName(key);
+                if (name == null) {
+                    return;
+                }
+                journal(DIRTY, key, newEntry(name, 0, 0, false));
+                mWriting.put(key, name);
+            }
+
+            CacheEntry entry = null;
+            try {
+                entry = writeBitmapToFile(data, name);
+            } catch (final FileNotFoundException e) {
+                Log.e(TAG, "Error in put: " + e.getMessage());
+            } catch (final IOException e) {
+                Log.e(TAG, "Error in put: " + e.getMessage());
+            }
+
+            synchronized (mLinkedHashMap) {
+                mWriting.remove(key);
+                if (entry != null) {
+                    put(key, entry);
+                    scheduleTrim();
+                } else {
+                    getEntryFile(name).delete();
+                    journal(REMOVE, key, null);
                 }
             }
         }
     }
 
-    private void put(String key, String file) {
-        mLinkedHashMap.put(key, file);
+    private void put(String key, CacheEntry entry) {
+        mLinkedHashMap.put(key, entry);
         cacheSize = mLinkedHashMap.size();
-        cacheByteSize += new File(file).length();
+        cacheByteSize += entry.size;
+        journal(CLEAN, key, entry);
     }
 
     /**
-     * Flush the cache, removing oldest entries if the total size is over the specified cache size.
-     * Note that this isn't keeping track of stale files in the cache directory that aren't in the
-     * HashMap. If the images and keys in the disk cache change often then they probably won't ever
-     * be removed.
+     * Pick a file name for a new entry and create the (empty) file so no other entry can take the
+     * same name. Must be called with the index lock held.
+     *
+     * @return The file name, or null if no file could be created
      */
-    private void flushCache() {
-        Entry<String, String> eldestEntry;
-        File eldestFile;
-        long eldestFileSize;
-        int count = 0;
+    private String allocateFileName(String key) {
+        final String hash = hashKey(key);
+        String name = hash;
+        try {
+            for (int i = 1; !createEntryFile(name); i++) {
+                name = hash + '-' + i;
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in allocateFileName: " + e.getMessage());
+            return null;
+        }
+        return name;
+    }
 
-        while (count < MAX_REMOVALS &&
-                (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize)) {
-            eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-            eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
-            mLinkedHashMap.remove(eldestEntry.getKey());
-            eldestFile.delete();
-            cacheSize = mLinkedHashMap.size();
-            cacheByteSize -= eldestFileSize;
-            count++;
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "flushCache - Removed cache file, " + eldestFile + ", "
-                        + eldestFileSize);
+    private boolean createEntryFile(String name) throws IOException {
+        final File file = getEntryFile(name);
+        final File shardDir = file.getParentFile();
+        if (!shardDir.isDirectory() && !shardDir.mkdirs()) {
+            throw new IOException("unable to create " + shardDir);
+        }
+        return file.createNewFile();
+    }
+
+    private CacheEntry newEntry(String name, long size, long crc, boolean verified) {
+        return new CacheEntry(name, getEntryFile(name).getPath(), size, crc, verified);
+    }
+
+    private static File getTempFile(File file) {
+        return new File(file.getPath() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Get the file an entry is stored in from its name, which starts with the shard directories.
+     */
+    private File getEntryFile(String name) {
+        return getEntryFile(mCacheDir, name);
+    }
+
+    private static File getEntryFile(File cacheDir, String name) {
+        File dir = cacheDir;
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            dir = new File(dir, name.substring(i * SHARD_NAME_LENGTH, (i + 1) * SHARD_NAME_LENGTH));
+        }
+        return new File(dir, CACHE_FILENAME_PREFIX + name);
+    }
+
+    /**
+     * @return The hex MD5 digest of key
+     */
+    private static String hashKey(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            return hex.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Start a background trim if the cache is over either of its limits. Must be called with the
+     * index lock held.
+     */
+    private void scheduleTrim() {
+        if (!mTrimPending && mJournalWriter != null && isOverLimit()) {
+            mTrimPending = true;
+            mCompactionExecutor.execute(mTrimRunnable);
+        }
+    }
+
+    private boolean isOverLimit() {
+        return cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize;
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is back within both its item and
+     * byte limits. Entries are dropped from the index under the lock using the sizes recorded when
+     * they were written, and their files are deleted afterwards so that readers aren't held up
+     * behind the file system.
+     */
+    private void trimToSize() {
+        final List<File> evicted = new ArrayList<File>();
+        synchronized (mLinkedHashMap) {
+            mTrimPending = false;
+            if (mJournalWriter == null) {
+                return; // Closed
             }
+            final Iterator<Entry<String, CacheEntry>> iterator =
+                    mLinkedHashMap.entrySet().iterator();
+            while (isOverLimit() && iterator.hasNext()) {
+                final Entry<String, CacheEntry> eldest = iterator.next();
+                final CacheEntry entry = eldest.getValue();
+                iterator.remove();
+                journal(REMOVE, eldest.getKey(), null);
+                cacheSize = mLinkedHashMap.size();
+                cacheByteSize -= entry.size;
+                mEvictionCount++;
+                mEvictedByteCount += entry.size;
+                evicted.add(new File(entry.file));
+            }
+        }
+
+        // A file's name can't be reused until it has been deleted, so this can't race with a put
+        for (File file : evicted) {
+            file.delete();
+        }
+        if (BuildConfig.DEBUG && !evicted.isEmpty()) {
+            Log.d(TAG, "trimToSize - Removed " + evicted.size() + " cache files");
         }
     }
 
@@ -173,24 +708,167 @@ public class DiskLruCache {
      * @return The bitmap or null if not found
      */
     public Bitmap get(String key) {
+        final CacheEntry entry;
         synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
-            if (file != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Disk cache hit");
+            entry = mLinkedHashMap.get(key);
+            if (entry == null) {
+                return null;
+            }
+            journal(READ, key, null);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Disk cache hit");
+        }
+
+        // Decode outside of the index lock so reads of different keys can run in parallel. A file
+        // is only written while its key is absent from the index, so the worst that can normally
+        // happen is that the entry is evicted underneath us and the decode fails.
+        if (!entry.verified) {
+            if (!verifyFile(entry)) {
+                quarantine(key, entry);
+                return null;
+            }
+            entry.verified = true;
+        }
+
+        final Bitmap bitmap = decodeFile(entry.file);
+        if (bitmap == null) {
+            synchronized (mLinkedHashMap) {
+                // The file has gone missing or can't be decoded, drop the entry (unless it has
+                // already been replaced)
+                if (mLinkedHashMap.get(key) == entry) {
+                    removeEntry(key);
                 }
-                return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mCacheDir, key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "Disk cache hit (existing file)");
-                    }
-                    return BitmapFactory.decodeFile(existingFile);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Check that an entry's file has the size and checksum recorded when it was written.
+     */
+    private static boolean verifyFile(CacheEntry entry) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(entry.file);
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[Utils.IO_BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, count);
+                size += count;
+            }
+            if (size == entry.size && crc.getValue() == entry.crc) {
+                return true;
+            }
+            Log.e(TAG, "verifyFile - " + entry.file + " is corrupt, expected " + entry.size
+                    + " bytes with CRC " + Long.toHexString(entry.crc) + " but found " + size
+                    + " bytes with CRC " + Long.toHexString(crc.getValue()));
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in verifyFile: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop an entry that failed verification and move its file to the quarantine directory,
+     * keeping only the most recently quarantined files.
+     */
+    private void quarantine(String key, CacheEntry entry) {
+        synchronized (mLinkedHashMap) {
+            if (mLinkedHashMap.get(key) != entry) {
+                return; // Already replaced or removed
+            }
+            mLinkedHashMap.remove(key);
+            cacheSize = mLinkedHashMap.size();
+            cacheByteSize -= entry.size;
+            journal(REMOVE, key, null);
+        }
+
+        final File quarantineDir = new File(mCacheDir, QUARANTINE_DIR);
+        final File file = new File(entry.file);
+        if ((!quarantineDir.isDirectory() && !quarantineDir.mkdir())
+                || !file.renameTo(new File(quarantineDir, file.getName()))) {
+            file.delete();
+            return;
+        }
+
+        final File[] quarantined = quarantineDir.listFiles();
+        if (quarantined != null && quarantined.length > MAX_QUARANTINED_FILES) {
+            Arrays.sort(quarantined, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    final long l = lhs.lastModified();
+                    final long r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
                 }
+            });
+            for (int i = 0; i < quarantined.length - MAX_QUARANTINED_FILES; i++) {
+                quarantined[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Decode a cache file, reusing a bitmap from the pool if there is one of the right size. Raw
+     * entries are memory mapped and their pixels copied straight out of the mapping, compressed
+     * entries are decoded from the file descriptor so neither is copied into an intermediate
+     * buffer first.
+     */
+    private Bitmap decodeFile(String file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            header.flip();
+            if (RawBitmapFormat.isRawBitmap(header)) {
+                return RawBitmapFormat.decode(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                        mBitmapPool);
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            if (mBitmapPool != null && mBitmapPool.size() > 0) {
+                // Only worth reading the bounds first if there's something that could be reused
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+                options.inJustDecodeBounds = false;
+            }
+            BitmapPool.addInBitmapOptions(options, mBitmapPool);
+
+            try {
+                channel.position(0);
+                return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
+            } catch (final IllegalArgumentException e) {
+                // The pooled bitmap couldn't be reused after all
+                BitmapPool.removeInBitmapOptions(options);
+                channel.position(0);
+                return BitmapFactory.decodeFileDescriptor(in.getFD(), null, options);
             }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in decodeFile: " + e.getMessage());
             return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // Ignore
+                }
+            }
         }
     }
 
@@ -201,26 +879,68 @@ public class DiskLruCache {
      * @return true if found, false otherwise
      */
     public boolean containsKey(String key) {
-        // See if the key is in our HashMap
-        if (mLinkedHashMap.containsKey(key)) {
-            return true;
+        return mLinkedHashMap.containsKey(key);
+    }
+
+    /**
+     * Remove the entry for key, if it exists. A put() of the same key that is still being written
+     * isn't affected.
+     *
+     * @param key The unique identifier for the bitmap
+     */
+    public void remove(String key) {
+        synchronized (mLinkedHashMap) {
+            removeEntry(key);
         }
+    }
 
-        // Now check if there's an actual file that exists based on the key
-        final String existingFile = createFilePath(mCacheDir, key);
-        if (new File(existingFile).exists()) {
-            // File found, add it to the HashMap for future use
-            put(key, existingFile);
-            return true;
+    /**
+     * Removes the entry for key, if it exists. Must be called with the index lock held.
+     */
+    private void removeEntry(String key) {
+        final CacheEntry entry = mLinkedHashMap.remove(key);
+        if (entry != null) {
+            new File(entry.file).delete();
+            cacheSize = mLinkedHashMap.size();
+            cacheByteSize -= entry.size;
+            journal(REMOVE, key, null);
         }
-        return false;
     }
 
     /**
      * Removes all disk cache entries from this instance cache dir
      */
     public void clearCache() {
-        DiskLruCache.clearCache(mCacheDir);
+        synchronized (mLinkedHashMap) {
+            DiskLruCache.clearCache(mCacheDir);
+            mLinkedHashMap.clear();
+            cacheSize = 0;
+            cacheByteSize = 0;
+            if (mJournalWriter != null) {
+                try {
+                    rebuildJournal();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in clearCache: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the journal. The cache can't be used after this has been called.
+     */
+    public void close() {
+        synchronized (mLinkedHashMap) {
+            if (mJournalWriter != null) {
+                try {
+                    mJournalWriter.close();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error in close: " + e.getMessage());
+                }
+                mJournalWriter = null;
+            }
+        }
+        mCompactionExecutor.shutdown();
     }
 
     /**
@@ -243,9 +963,33 @@ public class DiskLruCache {
      * @param cacheDir The directory to remove the cache files from
      */
     private static void clearCache(File cacheDir) {
-        final File[] files = cacheDir.listFiles(cacheFileFilter);
-        for (int i=0; i<files.length; i++) {
-            files[i].delete();
+        clearCacheFiles(cacheDir, SHARD_LEVELS);
+        final File quarantineDir = new File(cacheDir, QUARANTINE_DIR);
+        clearCacheFiles(quarantineDir, 0);
+        quarantineDir.delete();
+        new File(cacheDir, JOURNAL_FILE).delete();
+        new File(cacheDir, JOURNAL_FILE_TMP).delete();
+    }
+
+    /**
+     * Delete the cache files in dir and in the given number of levels of shard directories below
+     * it, along with the shard directories themselves.
+     */
+    private static void clearCacheFiles(File dir, int shardLevels) {
+        final File[] files = dir.listFiles(cacheFileFilter);
+        if (files != null) {
+            for (int i=0; i<files.length; i++) {
+                files[i].delete();
+            }
+        }
+        if (shardLevels > 0) {
+            final File[] shards = dir.listFiles(shardDirFilter);
+            if (shards != null) {
+                for (File shard : shards) {
+                    clearCacheFiles(shard, shardLevels - 1);
+                    shard.delete();
+                }
+            }
         }
     }
 
@@ -270,33 +1014,27 @@ public class DiskLruCache {
     }
 
     /**
-     * Creates a constant cache file path given a target cache directory and an image key.
+     * Creates a constant cache file path given a target cache directory and an image key. This is
+     * where an entry for the key is normally stored, but an entry whose key shares a hash with
+     * another may have a suffix added, use {@link #createFilePath(String)} for the actual file.
      *
      * @param cacheDir
      * @param key
      * @return
      */
     public static String createFilePath(File cacheDir, String key) {
-        try {
-            // Use URLEncoder to ensure we have a valid filename, a tad hacky but it will do for
-            // this example
-            return cacheDir.getAbsolutePath() + File.separator +
-                    CACHE_FILENAME_PREFIX + URLEncoder.encode(key.replace("*", ""), "UTF-8");
-        } catch (final UnsupportedEncodingException e) {
-            Log.e(TAG, "createFilePath - " + e);
-        }
-
-        return null;
+        return getEntryFile(cacheDir, hashKey(key)).getAbsolutePath();
     }
 
     /**
-     * Create a constant cache file path using the current cache directory and an image key.
+     * Get the cache file path for an image key, using the current cache directory.
      *
      * @param key
      * @return
      */
     public String createFilePath(String key) {
-        return createFilePath(mCacheDir, key);
+        final CacheEntry entry = mLinkedHashMap.get(key);
+        return entry != null ? entry.file : createFilePath(mCacheDir, key);
     }
 
     /**
@@ -310,25 +1048,179 @@ public class DiskLruCache {
         mCompressQuality = quality;
     }
 
+    /**
+     * Sets whether bitmaps are written to the disk cache as raw pixels rather than compressed with
+     * the format given to {@link DiskLruCache#setCompressParams(CompressFormat, int)}. Raw entries
+     * are much quicker to read back and don't lose quality, but take more space.
+     *
+     * @param rawFormat Whether to store raw pixels
+     * @param deflate Whether to deflate the raw pixels
+     */
+    public void setRawParams(boolean rawFormat, boolean deflate) {
+        mRawFormat = rawFormat;
+        mRawDeflate = deflate;
+    }
+
+    /**
+     * Sets the pool that decoded bitmaps are allowed to reuse.
+     *
+     * @param bitmapPool The pool to use, may be null
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Sets the maximum number of entries in the cache, trimming it in the background if it is
+     * already over.
+     *
+     * @param maxItemCount
+     */
+    public void setMaxItemCount(int maxItemCount) {
+        synchronized (mLinkedHashMap) {
+            maxCacheItemSize = maxItemCount;
+            scheduleTrim();
+        }
+    }
+
+    /**
+     * @return The number of entries in the cache
+     */
+    public int size() {
+        synchronized (mLinkedHashMap) {
+            return cacheSize;
+        }
+    }
+
+    /**
+     * @return The total size in bytes of the entries in the cache
+     */
+    public long getByteSize() {
+        synchronized (mLinkedHashMap) {
+            return cacheByteSize;
+        }
+    }
+
+    /**
+     * @return The maximum total size in bytes of the entries in the cache
+     */
+    public long getMaxByteSize() {
+        return maxCacheByteSize;
+    }
+
+    /**
+     * @return The maximum number of entries in the cache
+     */
+    public int getMaxItemCount() {
+        synchronized (mLinkedHashMap) {
+            return maxCacheItemSize;
+        }
+    }
+
+    /**
+     * @return The number of entries removed to keep the cache within its limits
+     */
+    public int getEvictionCount() {
+        synchronized (mLinkedHashMap) {
+            return mEvictionCount;
+        }
+    }
+
+    /**
+     * @return The total size in bytes of the entries removed to keep the cache within its limits
+     */
+    public long getEvictedByteCount() {
+        synchronized (mLinkedHashMap) {
+            return mEvictedByteCount;
+        }
+    }
+
     /**
      * Writes a bitmap to a file. Call {@link DiskLruCache#setCompressParams(CompressFormat, int)}
-     * first to set the target bitmap compression and format.
+     * or {@link DiskLruCache#setRawParams(boolean, boolean)} first to set the target bitmap
+     * compression and format. The data goes to a temporary file first, which only replaces the
+     * entry's file once it has been completely written and synced.
      *
      * @param bitmap
-     * @param file
-     * @return
+     * @param name The entry file name
+     * @return The entry with the size and CRC32 of the data written, or null if the bitmap
+     *         couldn't be encoded
      */
-    private boolean writeBitmapToFile(Bitmap bitmap, String file)
+    private CacheEntry writeBitmapToFile(Bitmap bitmap, String name)
             throws IOException, FileNotFoundException {
 
-        OutputStream out = null;
+        // Encode the whole entry up front so it can go to disk in a single write
+        final ByteBuffer buffer;
+        if (mRawFormat && RawBitmapFormat.canEncode(bitmap)) {
+            buffer = RawBitmapFormat.encode(bitmap, 0, mRawDeflate);
+        } else {
+            final EncodeBuffer out = new EncodeBuffer(
+                    bitmap.getRowBytes() * bitmap.getHeight() / ESTIMATED_COMPRESSION_RATIO);
+            if (!bitmap.compress(mCompressFormat, mCompressQuality, out)) {
+                return null;
+            }
+            buffer = out.toByteBuffer();
+        }
+
+        final long size = buffer.remaining();
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+        final File file = getEntryFile(name);
+        final File tempFile = getTempFile(file);
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        boolean committed = false;
         try {
-            out = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
-            return bitmap.compress(mCompressFormat, mCompressQuality, out);
+            final FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.getFD().sync();
+            out.close();
+            committed = tempFile.renameTo(file);
+            if (!committed) {
+                throw new IOException("unable to rename " + tempFile);
+            }
+            return newEntry(name, size, crc.getValue(), true);
         } finally {
-            if (out != null) {
+            if (!committed) {
                 out.close();
+                tempFile.delete();
             }
         }
     }
+
+    /**
+     * A ByteArrayOutputStream that gives access to its buffer without copying it.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        EncodeBuffer(int initialSize) {
+            super(Math.max(Utils.IO_BUFFER_SIZE, initialSize));
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * The index entry for a single cached file.
+     */
+    private static class CacheEntry {
+        final String name;
+        final String file;
+        final long size;
+        final long crc;
+
+        // Whether the file is known to match the size and checksum
+        volatile boolean verified;
+
+        CacheEntry(String name, String file, long size, long crc, boolean verified) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.crc = crc;
+            this.verified = verified;
+        }
+    }
 }
\ No newline at end of file
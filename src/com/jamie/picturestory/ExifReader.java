@@ -0,0 +1,224 @@
+package com.jamie.picturestory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * Reads the orientation of a JPEG from the EXIF data in its header. This only walks the JPEG
+ * markers up to the APP1 segment and the entries of the first IFD inside it, skipping everything
+ * else including the embedded thumbnail, so it reads a few hundred bytes past any segments that
+ * come before the EXIF data rather than parsing all of the metadata like
+ * {@link android.media.ExifInterface} does.
+ */
+public class ExifReader {
+    private static final String TAG = "ExifReader";
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int BYTE_ORDER_INTEL = 0x4949; // "II"
+    private static final int BYTE_ORDER_MOTOROLA = 0x4D4D; // "MM"
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * Returned when the header couldn't be read far enough to find out the orientation.
+     */
+    public static final int ORIENTATION_UNKNOWN = -1;
+
+    private ExifReader() {}
+
+    /**
+     * Read the orientation of a JPEG from the start of a stream. Anything that isn't a JPEG with an
+     * EXIF orientation tag is treated as unrotated. If the stream fails or ends, or the EXIF data
+     * lies beyond maxBytes, the orientation isn't known and ORIENTATION_UNKNOWN is returned so the
+     * caller can tell a guess from an answer.
+     *
+     * @param in A stream positioned at the start of the image
+     * @param maxBytes The most bytes to read from the stream
+     * @return The clockwise rotation in degrees needed to display the image upright, one of 0, 90,
+     *         180 or 270, or ORIENTATION_UNKNOWN
+     */
+    public static int readOrientation(InputStream in, int maxBytes) {
+        try {
+            return toDegrees(readOrientationTag(new LimitedReader(in, maxBytes)));
+        } catch (final IOException e) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "readOrientation - unable to read the header: " + e.getMessage());
+            }
+            return ORIENTATION_UNKNOWN;
+        }
+    }
+
+    private static int readOrientationTag(LimitedReader in) throws IOException {
+        if (in.read() != MARKER_PREFIX || in.read() != MARKER_SOI) {
+            return 0; // Not a JPEG
+        }
+
+        while (true) {
+            if (in.read() != MARKER_PREFIX) {
+                return 0; // Corrupt
+            }
+            int marker = in.read();
+            while (marker == MARKER_PREFIX) {
+                marker = in.read(); // Fill bytes
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return 0; // Image data starts, so there's no more metadata
+            }
+
+            final int length = in.readShort(false) - 2;
+            if (length < 0) {
+                return 0;
+            }
+            if (marker != MARKER_APP1 || length < EXIF_HEADER.length) {
+                in.skip(length);
+                continue;
+            }
+
+            if (readExifHeader(in)) {
+                return readTiff(in, length - EXIF_HEADER.length);
+            }
+            // Some other APP1 segment, such as XMP
+            in.skip(length - EXIF_HEADER.length);
+        }
+    }
+
+    private static boolean readExifHeader(LimitedReader in) throws IOException {
+        boolean matches = true;
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            // Read all of it whether or not it matches, so the rest of the segment can be skipped
+            matches &= in.read() == (EXIF_HEADER[i] & 0xFF);
+        }
+        return matches;
+    }
+
+    /**
+     * Find the orientation tag in IFD0 of the TIFF structure that makes up the EXIF data. Only the
+     * TIFF header and the IFD0 entries up to the orientation tag are read; everything after them,
+     * including any thumbnail, is left unread.
+     *
+     * @param length The length of the TIFF structure, which is the rest of the APP1 segment
+     */
+    private static int readTiff(LimitedReader in, int length) throws IOException {
+        if (length < 8) {
+            return 0;
+        }
+
+        final int byteOrder = in.readShort(false);
+        final boolean littleEndian;
+        if (byteOrder == BYTE_ORDER_INTEL) {
+            littleEndian = true;
+        } else if (byteOrder == BYTE_ORDER_MOTOROLA) {
+            littleEndian = false;
+        } else {
+            return 0;
+        }
+        in.readShort(littleEndian); // TIFF magic number
+
+        // IFD0 is nearly always straight after the header, but it doesn't have to be
+        final int ifdOffset = in.readInt(littleEndian);
+        if (ifdOffset < 8 || ifdOffset > length - 2) {
+            return 0;
+        }
+        in.skip(ifdOffset - 8);
+
+        final int entryCount = in.readShort(littleEndian);
+        final int maxEntries = (length - ifdOffset - 2) / 12;
+        for (int i = 0; i < entryCount && i < maxEntries; i++) {
+            final int tag = in.readShort(littleEndian);
+            final int type = in.readShort(littleEndian);
+            in.readInt(littleEndian); // Count
+            final int value = in.readShort(littleEndian);
+            in.readShort(littleEndian);
+            if (tag == TAG_ORIENTATION && type == TYPE_SHORT) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    private static int toDegrees(int orientation) {
+        switch (orientation) {
+        case ORIENTATION_ROTATE_90:
+            return 90;
+        case ORIENTATION_ROTATE_180:
+            return 180;
+        case ORIENTATION_ROTATE_270:
+            return 270;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Reads from a stream without going over a byte limit, so the caller can rewind the stream
+     * afterwards.
+     */
+    private static class LimitedReader {
+        private final InputStream mIn;
+        private int mRemaining;
+
+        LimitedReader(InputStream in, int limit) {
+            mIn = in;
+            mRemaining = limit;
+        }
+
+        int read() throws IOException {
+            if (mRemaining <= 0) {
+                throw new EOFException("Header limit reached");
+            }
+            final int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            mRemaining--;
+            return b;
+        }
+
+        int readShort(boolean littleEndian) throws IOException {
+            final int b0 = read();
+            final int b1 = read();
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int readInt(boolean littleEndian) throws IOException {
+            final int s0 = readShort(littleEndian);
+            final int s1 = readShort(littleEndian);
+            return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+        }
+
+        void skip(int count) throws IOException {
+            if (count > mRemaining) {
+                throw new EOFException("Header limit reached");
+            }
+            int remaining = count;
+            while (remaining > 0) {
+                final long skipped = mIn.skip(remaining);
+                if (skipped <= 0) {
+                    // skip() may return 0 before the end of the stream
+                    if (mIn.read() < 0) {
+                        throw new EOFException();
+                    }
+                    remaining--;
+                } else {
+                    remaining -= skipped;
+                }
+            }
+            mRemaining -= count;
+        }
+    }
+}
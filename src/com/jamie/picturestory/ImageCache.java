@@ -17,12 +17,19 @@
 package com.jamie.picturestory;
 
 import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 /**
@@ -37,17 +44,83 @@ public class ImageCache {
     // Default disk cache size
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
+    // Default maximum number of entries in the disk cache
+    private static final int DEFAULT_DISK_CACHE_MAX_ITEMS = 64;
+
+    // Default size of the pool of bitmaps kept around for reuse
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 4; // 4MB
+
     // Compression settings when writing images to disk cache
     private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
 
+    // Whether to write raw (optionally deflated) pixels to the disk cache instead of compressing
+    private static final boolean DEFAULT_RAW_FORMAT = false;
+    private static final boolean DEFAULT_RAW_DEFLATE = true;
+
+    // Maximum number of bitmaps waiting to be written to the disk cache
+    private static final int DEFAULT_DISK_WRITE_QUEUE_SIZE = 4;
+
+    // Limits used when sizing the caches for the device, see ImageCacheParams.setAdaptiveSizes()
+    private static final int ADAPTIVE_MEM_CACHE_HEAP_FRACTION = 8;
+    private static final int ADAPTIVE_MAX_MEM_CACHE_HEAP_FRACTION = 4;
+    private static final int ADAPTIVE_BITMAP_POOL_HEAP_FRACTION = 16;
+    private static final int ADAPTIVE_MIN_CACHED_PAGES = 3;
+    private static final int ADAPTIVE_POOLED_PAGES = 2;
+    private static final int ADAPTIVE_DISK_SPACE_FRACTION = 10;
+    private static final int ADAPTIVE_MAX_DISK_CACHE_SIZE = 1024 * 1024 * 64; // 64MB
+
+    // How long after the last trim memory signal the memory cache stays shrunk
+    private static final long TRIM_MEMORY_RESTORE_DELAY = 30 * 1000;
+
+    // Maximum number of bitmaps evicted from the memory cache to keep track of
+    private static final int MAX_EVICTED_BITMAPS = 64;
+
+    // Name of the file in the disk cache directory that image orientations are kept in
+    private static final String ORIENTATION_FILE = "orientations";
+
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
+    private static final boolean DEFAULT_BITMAP_POOL_ENABLED = true;
     private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
 
     private DiskLruCache mDiskCache;
+    private DiskCacheWriter mDiskCacheWriter;
     private LruCache<String, Bitmap> mMemoryCache;
+    private BitmapPool mBitmapPool;
+    private OrientationCache mOrientationCache;
+
+    // The size the memory cache is currently held to, lowered in response to memory pressure
+    private volatile int mMemCacheLimit;
+    private volatile long mLastTrimTime;
+
+    // Bitmaps that are in the memory cache and the number of outstanding references to each
+    // bitmap (displayed or about to be). A bitmap can only be reused once it is in neither. Bitmap
+    // doesn't override equals() so these behave as weak identity maps. Guarded by mRetainedBitmaps.
+    private final WeakHashMap<Bitmap, Boolean> mMemCachedBitmaps =
+            new WeakHashMap<Bitmap, Boolean>();
+    private final WeakHashMap<Bitmap, Integer> mRetainedBitmaps =
+            new WeakHashMap<Bitmap, Integer>();
+
+    // A second memory tier of bitmaps evicted from the memory cache, only weakly referenced. They
+    // can be brought back as long as they haven't been garbage collected or handed out by the
+    // reuse pool since. Guarded by mRetainedBitmaps.
+    private final LinkedHashMap<String, EvictedBitmap> mEvictedBitmaps =
+            new LinkedHashMap<String, EvictedBitmap>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, EvictedBitmap> eldest) {
+                    return size() > MAX_EVICTED_BITMAPS;
+                }
+            };
+
+    // Hits in each tier, and lookups that missed all of them. Guarded by mRetainedBitmaps.
+    private int mMemoryHitCount = 0;
+    private int mEvictedHitCount = 0;
+    private int mDiskHitCount = 0;
+    private int mMissCount = 0;
 
     /**
      * Creating a new ImageCache object using the specified parameters.
@@ -118,15 +191,32 @@ public class ImageCache {
     private void init(Context context, ImageCacheParams cacheParams) {
         final File diskCacheDir = DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
 
+        // Set up the reuse pool
+        if (cacheParams.bitmapPoolEnabled && BitmapPool.isReuseSupported()) {
+            mBitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
+        }
+
         // Set up disk cache
         if (cacheParams.diskCacheEnabled) {
             mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
-            mDiskCache.setCompressParams(cacheParams.compressFormat, cacheParams.compressQuality);
-            if (cacheParams.clearDiskCacheOnStart) {
-                mDiskCache.clearCache();
+            if (mDiskCache != null) {
+                mDiskCache.setCompressParams(
+                        cacheParams.compressFormat, cacheParams.compressQuality);
+                mDiskCache.setRawParams(cacheParams.rawFormat, cacheParams.rawDeflate);
+                mDiskCache.setBitmapPool(mBitmapPool);
+                mDiskCache.setMaxItemCount(cacheParams.diskCacheMaxItems);
+                if (cacheParams.clearDiskCacheOnStart) {
+                    mDiskCache.clearCache();
+                }
+                mDiskCacheWriter =
+                        new DiskCacheWriter(mDiskCache, cacheParams.diskWriteQueueSize);
             }
         }
 
+        // Set up the orientation cache, persisted alongside the disk cache if there is one
+        mOrientationCache = new OrientationCache(
+                mDiskCache != null ? new File(diskCacheDir, ORIENTATION_FILE) : null);
+
         // Set up memory cache
         if (cacheParams.memoryCacheEnabled) {
             mMemoryCache = new LruCache<String, Bitmap>(cacheParams.memCacheSize) {
@@ -138,45 +228,231 @@ public class ImageCache {
                 protected int sizeOf(String key, Bitmap bitmap) {
                     return Utils.getBitmapSize(bitmap);
                 }
+
+                /**
+                 * Offer bitmaps that drop out of the cache to the reuse pool
+                 */
+                @Override
+                protected void entryRemoved(
+                        boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    if (oldValue != newValue) {
+                        onBitmapRemovedFromMemCache(key, oldValue, evicted);
+                    }
+                }
             };
+            mMemCacheLimit = cacheParams.memCacheSize;
         }
     }
 
+    /**
+     * Add a bitmap to the memory cache and queue it to be written to the disk cache. The disk write
+     * happens on a background thread so this returns as soon as the memory cache is updated.
+     *
+     * @param data Unique identifier for the bitmap
+     * @param bitmap The bitmap to store
+     */
     public void addBitmapToCache(String data, Bitmap bitmap) {
-        if (data == null || bitmap == null) {
+        addBitmapToCache(data, data, bitmap);
+    }
+
+    /**
+     * Add a bitmap to the memory cache and queue it to be written to the disk cache, under
+     * different keys in each.
+     *
+     * @param data Identifies the bitmap in the memory cache
+     * @param diskKey Identifies the bitmap in the disk cache
+     * @param bitmap The bitmap to store
+     */
+    public void addBitmapToCache(String data, String diskKey, Bitmap bitmap) {
+        if (data == null || diskKey == null || bitmap == null) {
             return;
         }
 
+        // Queue for the disk cache first, so that if the memory cache evicts the bitmap straight
+        // away (e.g. after onTrimMemory) it is already pending and isn't pooled and overwritten
+        // while it is being compressed
+        if (mDiskCacheWriter != null && !mDiskCache.containsKey(diskKey)) {
+            mDiskCacheWriter.enqueue(diskKey, bitmap);
+        }
+
         // Add to memory cache
         if (mMemoryCache != null && mMemoryCache.get(data) == null) {
+            synchronized (mRetainedBitmaps) {
+                mMemCachedBitmaps.put(bitmap, Boolean.TRUE);
+                mEvictedBitmaps.remove(data);
+            }
             mMemoryCache.put(data, bitmap);
-        }
-
-        // Add to disk cache
-        if (mDiskCache != null && !mDiskCache.containsKey(data)) {
-            mDiskCache.put(data, bitmap);
+            enforceMemCacheLimit();
         }
     }
 
     /**
-     * Get from memory cache.
+     * Get from memory cache, or from the bitmaps recently evicted from it if it's still there.
+     * Evicted bitmaps that are found are put back in the memory cache.
      *
      * @param data Unique identifier for which item to get
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromMemCache(String data) {
+        return getBitmapFromMemCache(data, true);
+    }
+
+    /**
+     * Get from memory cache, or from the bitmaps recently evicted from it if it's still there.
+     * Evicted bitmaps that are found are put back in the memory cache.
+     *
+     * @param data Unique identifier for which item to get
+     * @param countHit Whether to count a hit in the hit counts and log it, false for lookups that
+     *            only check whether an image is already loaded, so they don't inflate the hit rate
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromMemCache(String data, boolean countHit) {
         if (mMemoryCache != null) {
             final Bitmap memBitmap = mMemoryCache.get(data);
             if (memBitmap != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Memory cache hit");
+                if (countHit) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Memory cache hit");
+                    }
+                    synchronized (mRetainedBitmaps) {
+                        mMemoryHitCount++;
+                    }
                 }
                 return memBitmap;
             }
+
+            final Bitmap evictedBitmap = reclaimEvictedBitmap(data, countHit);
+            if (evictedBitmap != null) {
+                if (countHit && BuildConfig.DEBUG) {
+                    Log.d(TAG, "Evicted bitmap hit");
+                }
+                return evictedBitmap;
+            }
         }
         return null;
     }
 
+    /**
+     * Bring a bitmap back from the second memory tier, if it is still there and intact.
+     */
+    private Bitmap reclaimEvictedBitmap(String data, boolean countHit) {
+        synchronized (mRetainedBitmaps) {
+            final EvictedBitmap evicted = mEvictedBitmaps.remove(data);
+            if (evicted == null) {
+                return null;
+            }
+            final Bitmap bitmap = evicted.bitmap.get();
+            if (bitmap == null || bitmap.isRecycled() || (mBitmapPool != null
+                    && !mBitmapPool.reclaim(bitmap, evicted.reuseCount))) {
+                return null;
+            }
+
+            if (countHit) {
+                mEvictedHitCount++;
+            }
+            // Make room before putting it back rather than trimming afterwards, as that could
+            // evict the bitmap straight away and pool it before the caller has it
+            enforceMemCacheLimit(Utils.getBitmapSize(bitmap));
+            mMemCachedBitmaps.put(bitmap, Boolean.TRUE);
+            mMemoryCache.put(data, bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Get from memory cache and retain the bitmap so that it can't be handed out for reuse while
+     * it is in use, even if it is evicted. Each successful call must be matched by a call to
+     * {@link ImageCache#releaseBitmap(Bitmap)}.
+     *
+     * @param data Unique identifier for which item to get
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap retainBitmapFromMemCache(String data) {
+        // Holding the lock over the lookup means the bitmap can't be evicted and pooled between
+        // the lookup and being retained
+        synchronized (mRetainedBitmaps) {
+            final Bitmap bitmap = getBitmapFromMemCache(data);
+            if (bitmap != null) {
+                retainBitmap(bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Mark a bitmap as being in use (e.g. displayed) so it isn't reused while it is evicted from
+     * the memory cache. Must be matched by a call to {@link ImageCache#releaseBitmap(Bitmap)}.
+     *
+     * @param bitmap
+     */
+    public void retainBitmap(Bitmap bitmap) {
+        synchronized (mRetainedBitmaps) {
+            final Integer count = mRetainedBitmaps.get(bitmap);
+            mRetainedBitmaps.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Release a bitmap previously retained with {@link ImageCache#retainBitmap(Bitmap)}. Once it is
+     * no longer retained or in the memory cache, it is added to the reuse pool.
+     *
+     * @param bitmap
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        synchronized (mRetainedBitmaps) {
+            final Integer count = mRetainedBitmaps.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mRetainedBitmaps.put(bitmap, count - 1);
+                return;
+            }
+            mRetainedBitmaps.remove(bitmap);
+            if (mMemCachedBitmaps.containsKey(bitmap)) {
+                return;
+            }
+        }
+        offerToPool(bitmap);
+    }
+
+    private void onBitmapRemovedFromMemCache(String key, Bitmap bitmap, boolean evicted) {
+        synchronized (mRetainedBitmaps) {
+            mMemCachedBitmaps.remove(bitmap);
+            if (evicted) {
+                mEvictedBitmaps.put(key, new EvictedBitmap(bitmap,
+                        mBitmapPool != null ? mBitmapPool.getReuseCount(bitmap) : 0));
+            }
+            if (mRetainedBitmaps.containsKey(bitmap)) {
+                return;
+            }
+        }
+        offerToPool(bitmap);
+    }
+
+    private void offerToPool(Bitmap bitmap) {
+        // Bitmaps still waiting to be written to disk can't be reused until they're written, by
+        // which time they'll most likely have been overtaken by newer ones, so just let them go
+        if (mBitmapPool != null
+                && (mDiskCacheWriter == null || !mDiskCacheWriter.isPending(bitmap))) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * @return The pool of bitmaps available for reuse, or null if there isn't one
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * @return The cache of image orientations
+     */
+    public OrientationCache getOrientationCache() {
+        return mOrientationCache;
+    }
+
     /**
      * Get from disk cache.
      *
@@ -185,14 +461,189 @@ public class ImageCache {
      */
     public Bitmap getBitmapFromDiskCache(String data) {
         if (mDiskCache != null) {
-            return mDiskCache.get(data);
+            // A bitmap that is still waiting to be written doesn't need decoding at all
+            Bitmap bitmap = mDiskCacheWriter.getPending(data);
+            if (bitmap == null) {
+                bitmap = mDiskCache.get(data);
+            }
+            synchronized (mRetainedBitmaps) {
+                if (bitmap != null) {
+                    mDiskHitCount++;
+                } else {
+                    mMissCount++;
+                }
+            }
+            return bitmap;
         }
         return null;
     }
 
+    /**
+     * @return The number of lookups served by the memory cache
+     */
+    public int getMemoryHitCount() {
+        synchronized (mRetainedBitmaps) {
+            return mMemoryHitCount;
+        }
+    }
+
+    /**
+     * @return The number of lookups served by bitmaps brought back after being evicted from the
+     *         memory cache
+     */
+    public int getEvictedHitCount() {
+        synchronized (mRetainedBitmaps) {
+            return mEvictedHitCount;
+        }
+    }
+
+    /**
+     * @return The number of lookups served by the disk cache
+     */
+    public int getDiskHitCount() {
+        synchronized (mRetainedBitmaps) {
+            return mDiskHitCount;
+        }
+    }
+
+    /**
+     * @return The number of lookups that missed every tier
+     */
+    public int getMissCount() {
+        synchronized (mRetainedBitmaps) {
+            return mMissCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mRetainedBitmaps) {
+            return "ImageCache[memoryHits=" + mMemoryHitCount + ",evictedHits=" + mEvictedHitCount
+                    + ",diskHits=" + mDiskHitCount + ",misses=" + mMissCount + "]";
+        }
+    }
+
     public void clearCaches() {
-        mDiskCache.clearCache();
-        mMemoryCache.evictAll();
+        if (mDiskCache != null) {
+            mDiskCacheWriter.clear();
+            mDiskCache.clearCache();
+        }
+        if (mMemoryCache != null) {
+            mMemoryCache.evictAll();
+        }
+        synchronized (mRetainedBitmaps) {
+            mEvictedBitmaps.clear();
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.evictAll();
+        }
+        mOrientationCache.clear();
+    }
+
+    /**
+     * Shrink the caches in response to memory pressure, as reported to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. The memory cache is held to its reduced size
+     * until no more signals have arrived for a while.
+     *
+     * @param level The trim memory level
+     */
+    public void onTrimMemory(int level) {
+        if (mMemoryCache == null) {
+            return;
+        }
+
+        final int maxSize = mMemoryCache.maxSize();
+        final int limit;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            limit = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Critical while running, or hidden / in the background (UI_HIDDEN and BACKGROUND are
+            // both above RUNNING_CRITICAL) but not yet near the end of the LRU list
+            limit = maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            limit = maxSize / 2;
+        } else {
+            limit = maxSize * 3 / 4;
+        }
+
+        mLastTrimTime = SystemClock.uptimeMillis();
+        mMemCacheLimit = Math.min(mMemCacheLimit, limit);
+        mMemoryCache.trimToSize(mMemCacheLimit);
+
+        if (mBitmapPool != null) {
+            mBitmapPool.trimToSize(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    ? 0 : mBitmapPool.maxSize() / 2);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "onTrimMemory - level " + level + ", memory cache limited to "
+                    + mMemCacheLimit);
+        }
+    }
+
+    /**
+     * Keep the memory cache within the limit set by {@link #onTrimMemory(int)}, or lift the limit
+     * if memory pressure has passed.
+     */
+    private void enforceMemCacheLimit() {
+        enforceMemCacheLimit(0);
+    }
+
+    /**
+     * Like {@link #enforceMemCacheLimit()}, but leaving room within the limit for a bitmap that is
+     * about to be added.
+     *
+     * @param reserve The size in bytes of the bitmap to make room for
+     */
+    private void enforceMemCacheLimit(int reserve) {
+        final int maxSize = mMemoryCache.maxSize();
+        if (mMemCacheLimit >= maxSize) {
+            return;
+        }
+
+        if (SystemClock.uptimeMillis() - mLastTrimTime > TRIM_MEMORY_RESTORE_DELAY) {
+            mMemCacheLimit = maxSize;
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "enforceMemCacheLimit - memory cache limit restored");
+            }
+        } else {
+            mMemoryCache.trimToSize(Math.max(0, mMemCacheLimit - reserve));
+        }
+    }
+
+    /**
+     * Block until all queued disk cache writes have completed.
+     */
+    public void flush() {
+        if (mDiskCacheWriter != null) {
+            mDiskCacheWriter.flush();
+        }
+    }
+
+    /**
+     * Close the cache once it is no longer needed. Writes that are still queued are finished on
+     * the writer thread before the disk cache is closed, so this doesn't block.
+     */
+    public void close() {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "close - " + this);
+        }
+        if (mDiskCacheWriter != null) {
+            mDiskCacheWriter.close();
+        }
+    }
+
+    /**
+     * A bitmap in the second memory tier, with the reuse count it had when it was evicted.
+     */
+    private static class EvictedBitmap {
+        final WeakReference<Bitmap> bitmap;
+        final int reuseCount;
+
+        EvictedBitmap(Bitmap bitmap, int reuseCount) {
+            this.bitmap = new WeakReference<Bitmap>(bitmap);
+            this.reuseCount = reuseCount;
+        }
     }
 
     /**
@@ -202,14 +653,55 @@ public class ImageCache {
         public String uniqueName;
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public int diskCacheMaxItems = DEFAULT_DISK_CACHE_MAX_ITEMS;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
+        public boolean rawFormat = DEFAULT_RAW_FORMAT;
+        public boolean rawDeflate = DEFAULT_RAW_DEFLATE;
+        public int diskWriteQueueSize = DEFAULT_DISK_WRITE_QUEUE_SIZE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
+        public boolean bitmapPoolEnabled = DEFAULT_BITMAP_POOL_ENABLED;
         public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;
 
         public ImageCacheParams(String uniqueName) {
             this.uniqueName = uniqueName;
         }
+
+        /**
+         * Size the memory cache, reuse pool and disk cache for this device rather than using the
+         * fixed defaults. The memory cache gets a share of the app's memory class but always room
+         * for a few screen sized pages if the heap allows it, the pool holds a couple of pages, and
+         * the disk cache takes a share of the free space where it will be stored.
+         *
+         * @param context The context to use
+         */
+        public void setAdaptiveSizes(Context context) {
+            final int heapSize = 1024 * 1024 * Utils.getMemoryClass(context);
+            final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+            final int pageSize = displayMetrics.widthPixels * displayMetrics.heightPixels * 4;
+
+            memCacheSize = Math.min(heapSize / ADAPTIVE_MAX_MEM_CACHE_HEAP_FRACTION,
+                    Math.max(heapSize / ADAPTIVE_MEM_CACHE_HEAP_FRACTION,
+                            pageSize * ADAPTIVE_MIN_CACHED_PAGES));
+            bitmapPoolSize = Math.min(heapSize / ADAPTIVE_BITMAP_POOL_HEAP_FRACTION,
+                    pageSize * ADAPTIVE_POOLED_PAGES);
+
+            // The cache directory may not have been created yet
+            File diskCacheDir = DiskLruCache.getDiskCacheDir(context, uniqueName);
+            while (diskCacheDir != null && !diskCacheDir.exists()) {
+                diskCacheDir = diskCacheDir.getParentFile();
+            }
+            if (diskCacheDir != null) {
+                diskCacheSize = (int) Math.min(ADAPTIVE_MAX_DISK_CACHE_SIZE,
+                        Utils.getUsableSpace(diskCacheDir) / ADAPTIVE_DISK_SPACE_FRACTION);
+            }
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "setAdaptiveSizes - memory cache " + memCacheSize + ", bitmap pool "
+                        + bitmapPoolSize + ", disk cache " + diskCacheSize);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -85,11 +85,16 @@ public class ImageFragment extends Fragment {
 
     /**
      * Cancels the asynchronous work taking place on the ImageView, called by the adapter backing
-     * the ViewPager when the child is destroyed.
+     * the ViewPager when the child is destroyed. The displayed bitmap is handed back to the image
+     * worker so its memory can be reused.
      */
     public void cancelWork() {
-        ImageWorker.cancelWork(mImageView);
-        mImageView.setImageDrawable(null);
+        if (mImageWorker != null) {
+            mImageWorker.releaseImage(mImageView);
+        } else {
+            ImageWorker.cancelWork(mImageView);
+            mImageView.setImageDrawable(null);
+        }
         mImageView = null;
     }
 }
\ No newline at end of file
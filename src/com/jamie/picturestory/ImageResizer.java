@@ -16,6 +16,8 @@
 
 package com.jamie.picturestory;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,13 +25,14 @@ import java.io.InputStream;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
-import android.media.ExifInterface;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.util.Log;
 
 /**
@@ -39,8 +42,13 @@ import android.util.Log;
  */
 public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageWorker";
+    
+    // How much of the start of a stream is buffered so the header can be read more than once
+    private static final int HEADER_BUFFER_SIZE = 64 * 1024;
+    
     protected int mImageWidth;
     protected int mImageHeight;
+    private final DecodeBudget mDecodeBudget;
 
     /**
      * Initialize providing a single target image size (used for both width and height);
@@ -51,6 +59,8 @@ public class ImageResizer extends ImageWorker {
      */
     public ImageResizer(Context context, int imageWidth, int imageHeight) {
         super(context);
+        mDecodeBudget = DecodeBudget.getInstance(context);
+        setCacheKeyStrategy(new CanonicalCacheKeyStrategy(context.getContentResolver()));
         setImageSize(imageWidth, imageHeight);
     }
 
@@ -62,6 +72,8 @@ public class ImageResizer extends ImageWorker {
      */
     public ImageResizer(Context context, int imageSize) {
         super(context);
+        mDecodeBudget = DecodeBudget.getInstance(context);
+        setCacheKeyStrategy(new CanonicalCacheKeyStrategy(context.getContentResolver()));
         setImageSize(imageSize);
     }
 
@@ -84,19 +96,38 @@ public class ImageResizer extends ImageWorker {
     public void setImageSize(int size) {
         setImageSize(size, size);
     }
+
+    /**
+     * Images are cached at the size they were sampled to, so the target size is part of the key.
+     */
+    @Override
+    protected String getKeySuffix() {
+        return "#" + mImageWidth + 'x' + mImageHeight;
+    }
     
     /**
      * The main processing methods. These happen in a background task. In this case we are just
      * sampling down the bitmap and returning it from the resolver or from a file.
      *
      */
-    private Bitmap processBitmap(String file) {
-    	return decodeSampledBitmapFromFile(file, mImageWidth, mImageHeight);
+    private Bitmap processBitmap(String file, String identity) {
+    	return decodeSampledBitmapFromFile(file, mImageWidth, mImageHeight,
+    			getBitmapPool(), mDecodeBudget, getOrientationCache(), identity);
     }
     
-    private Bitmap processBitmap(Uri uri) {
-    	return decodeSampledBitmapFromResolver(
-    			mContext.getContentResolver(), uri, mImageWidth, mImageHeight);
+    private Bitmap processBitmap(Uri uri, String identity) {
+    	return decodeSampledBitmapFromResolver(mContext.getContentResolver(), uri, mImageWidth,
+    			mImageHeight, getBitmapPool(), mDecodeBudget, getOrientationCache(), identity);
+    }
+
+    private BitmapPool getBitmapPool() {
+        final ImageCache imageCache = getImageCache();
+        return imageCache != null ? imageCache.getBitmapPool() : null;
+    }
+
+    private OrientationCache getOrientationCache() {
+        final ImageCache imageCache = getImageCache();
+        return imageCache != null ? imageCache.getOrientationCache() : null;
     }
 
     @Override
@@ -106,12 +137,16 @@ public class ImageResizer extends ImageWorker {
         
         Log.d(TAG, "Header from filepth is: " + header);
         
+        // Orientations are remembered under the same identity as the disk cache uses, so they
+        // are read again once the image is modified
+        final String identity = getIdentity(data);
+        
         if (header.equals("content")) {
         	Log.d(TAG, "Filepath '" + filepath + "' detected as content uri.");
-        	return processBitmap(Uri.parse(filepath));
+        	return processBitmap(Uri.parse(filepath), identity);
         } else {
         	Log.d(TAG, "Filepath '" + filepath + "' detected as system file path.");
-        	return processBitmap(filepath.substring(7));
+        	return processBitmap(filepath.substring(7), identity);
         }
     }
 
@@ -141,8 +176,36 @@ public class ImageResizer extends ImageWorker {
         return BitmapFactory.decodeResource(res, resId, options);
     }
     
-    public static synchronized Bitmap decodeSampledBitmapFromResolver(
+    public static Bitmap decodeSampledBitmapFromResolver(
     		ContentResolver resolver, Uri uri, int reqWidth, int reqHeight) {
+    	return decodeSampledBitmapFromResolver(
+    			resolver, uri, reqWidth, reqHeight, null, null, null, null);
+    }
+    
+    /**
+     * Decode and scale down a bitmap from a content resolver Uri to the requested width and
+     * height, reusing a bitmap from the given pool if possible. The image is subsampled by a power
+     * of two while decoding and then scaled and rotated to its exact size in one filtered draw.
+     * The Uri is only opened once: the start of the stream is buffered so the EXIF orientation and
+     * the image bounds can be read from it before going back to decode the whole image. This is
+     * safe to call from several threads at once, the budget limits how much memory the concurrent
+     * decodes can take.
+     *
+     * @param resolver The content resolver to open the Uri with
+     * @param uri The Uri of the image
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @param budget The memory budget to decode within, may be null for no limit
+     * @param orientations Known image orientations to use and add to, may be null
+     * @param identity The identity of the image, as resolved by a {@link CacheKeyStrategy}, that
+     *            its orientation is remembered under. May be null to not use orientations.
+     * @return An upright bitmap with the same aspect ratio as the original, scaled down to fit
+     *         exactly inside the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromResolver(ContentResolver resolver, Uri uri,
+    		int reqWidth, int reqHeight, BitmapPool pool, DecodeBudget budget,
+    		OrientationCache orientations, String identity) {
 		
 		// Get InputStream for the Uri
     	InputStream input = null;
@@ -154,23 +217,102 @@ public class ImageResizer extends ImageWorker {
     				+ uri.toString());
     		return null;
     	}
+    	final RewindableInputStream stream = new RewindableInputStream(input, HEADER_BUFFER_SIZE);
+    	
+    	try {
+    		// Read the orientation from the EXIF header if it isn't already known
+    		final int orientation = getOrientation(orientations, identity, stream);
 
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(input, null, options);
-        try {
-        	input.close();
-        }
-        catch (IOException ioe) {
-        	Log.e(TAG, "IO exception during image bounds decode. Uri: " + uri.toString());
-        	return null;
-        }
-        
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+    		// First decode with inJustDecodeBounds=true to check dimensions
+    		final BitmapFactory.Options options = new BitmapFactory.Options();
+    		options.inJustDecodeBounds = true;
+    		decodeStream(resolver, uri, stream, options);
+    		if (options.outWidth <= 0 || options.outHeight <= 0) {
+    			Log.e(TAG, "Unable to decode image bounds. Uri: " + uri.toString());
+    			return null;
+    		}
+
+    		// Work out the exact size to scale to, and sample down as far as possible without going
+    		// below it
+    		final int[] targetSize = calculateTargetSize(options, orientation, reqWidth, reqHeight);
+    		options.inSampleSize =
+    				calculatePowerOfTwoInSampleSize(options, targetSize[0], targetSize[1]);
 
-        // Now decode bitmap with inSampleSize set
+    		final int acquired = acquireBudget(budget, options, targetSize);
+    		try {
+    			// Now decode bitmap with inSampleSize set
+    			options.inJustDecodeBounds = false;
+    			BitmapPool.addInBitmapOptions(options, pool);
+    			Bitmap bitmap;
+    			try {
+    				bitmap = decodeStream(resolver, uri, stream, options);
+    			} catch (IllegalArgumentException iae) {
+    				// The pooled bitmap couldn't be reused after all
+    				BitmapPool.removeInBitmapOptions(options);
+    				bitmap = decodeStream(resolver, uri, stream, options);
+    			}
+    			if (bitmap == null) {
+    				return null;
+    			}
+
+    			return scaleAndRotateBitmap(
+    					bitmap, targetSize[0], targetSize[1], orientation, pool);
+    		} finally {
+    			releaseBudget(budget, acquired);
+    		}
+    	} finally {
+    		try {
+    			stream.close();
+    		}
+    		catch (IOException ioe) {
+    			Log.e(TAG, "IO exception closing image stream. Uri: " + uri.toString());
+    		}
+    	}
+	}
+    
+    /**
+     * Take enough of the budget for a decode with the given options and the scaled copy made from
+     * it.
+     *
+     * @param budget The budget, may be null
+     * @param options Options with out* params and inSampleSize populated
+     * @param targetSize The width and height the decoded bitmap will be scaled to
+     * @return The amount taken, to pass to {@link #releaseBudget(DecodeBudget, int)}
+     */
+    private static int acquireBudget(DecodeBudget budget, BitmapFactory.Options options,
+    		int[] targetSize) {
+    	if (budget == null) {
+    		return 0;
+    	}
+    	return budget.acquire(DecodeBudget.estimateBytes(options.outWidth, options.outHeight,
+    			options.inSampleSize, options.inPreferredConfig)
+    			+ DecodeBudget.estimateBytes(targetSize[0], targetSize[1], 1,
+    					options.inPreferredConfig));
+    }
+    
+    private static void releaseBudget(DecodeBudget budget, int acquired) {
+    	if (budget != null) {
+    		budget.release(acquired);
+    	}
+    }
+    
+    /**
+     * Decode from the start of an already open stream, or from a newly opened one if the stream
+     * has been read too far to go back to the start.
+     */
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri,
+    		RewindableInputStream stream, BitmapFactory.Options options) {
+    	if (stream.rewind()) {
+    		return BitmapFactory.decodeStream(stream, null, options);
+    	}
+    	
+    	Log.d(TAG, "Image header too large to rewind, reopening Uri: " + uri.toString());
+    	return decodeStream(resolver, uri, options);
+    }
+    
+    private static Bitmap decodeStream(
+    		ContentResolver resolver, Uri uri, BitmapFactory.Options options) {
+    	InputStream input = null;
         try {
         	input = resolver.openInputStream(uri);
         }
@@ -179,38 +321,107 @@ public class ImageResizer extends ImageWorker {
         	return null;
         }
         
-        options.inJustDecodeBounds = false;
         Bitmap bitmap = BitmapFactory.decodeStream(input, null, options);
         
         try {
         	input.close();
         }
         catch (IOException ioe) {
-        	Log.e(TAG, "IO exception during image bounds decode. Uri: " + uri.toString());
+        	Log.e(TAG, "IO exception during image load. Uri: " + uri.toString());
         	return null;
         }
-                
-        return getRotation(resolver, bitmap, uri);
+        return bitmap;
 	}
     
-    public static Bitmap getRotation(ContentResolver resolver, Bitmap bitmap, Uri uri) {
-    	// Unfortunately we have to do an entire database query just to get the orientation
-    	String[] projection = { MediaStore.Images.Media.ORIENTATION };
-        Cursor cursor = resolver.query(uri, projection, null, null, null);
-        int column_index = cursor.getColumnIndexOrThrow(projection[0]);
-        cursor.moveToFirst();
-        int orientation = cursor.getInt(column_index);
-        cursor.close();
-        
-        Log.d(TAG, "Orientation detected from content resolver as: " + orientation);
-        
-        if (orientation > 0) {
-        	Matrix matrix = new Matrix();
-            matrix.postRotate(orientation);
-        	bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        }
+    /**
+     * Rotate a bitmap clockwise. The unrotated bitmap is recycled, so the caller must not use it
+     * again.
+     *
+     * @param bitmap The bitmap to rotate
+     * @param orientation The rotation in degrees
+     * @return The rotated bitmap, or bitmap itself if orientation is 0
+     */
+    public static Bitmap rotateBitmap(Bitmap bitmap, int orientation) {
+    	return rotateBitmap(bitmap, orientation, null);
+    }
+    
+    /**
+     * Rotate a bitmap clockwise, drawing it into a bitmap from the pool if there is one of the
+     * right size. The unrotated bitmap is given back to the pool (or recycled) afterwards, so the
+     * caller must not use it again.
+     *
+     * @param bitmap The bitmap to rotate
+     * @param orientation The rotation in degrees
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @return The rotated bitmap, or bitmap itself if orientation is 0
+     */
+    public static Bitmap rotateBitmap(Bitmap bitmap, int orientation, BitmapPool pool) {
+    	if (orientation == 0) {
+    		return bitmap;
+    	}
+    	
+    	final Matrix matrix = new Matrix();
+    	matrix.postRotate(orientation);
+    	return transformBitmap(bitmap, matrix, pool);
+    }
+    
+    /**
+     * Scale a bitmap to an exact size and then rotate it clockwise, in a single filtered draw into
+     * a bitmap from the pool if there is one of the right size. The original bitmap is given back
+     * to the pool (or recycled) afterwards, so the caller must not use it again.
+     *
+     * @param bitmap The bitmap to transform
+     * @param width The width to scale to, before rotating
+     * @param height The height to scale to, before rotating
+     * @param orientation The rotation in degrees
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @return The transformed bitmap, or bitmap itself if it is already the right size and upright
+     */
+    public static Bitmap scaleAndRotateBitmap(Bitmap bitmap, int width, int height,
+    		int orientation, BitmapPool pool) {
+    	if (orientation == 0 && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+    		return bitmap;
+    	}
+    	
+    	final Matrix matrix = new Matrix();
+    	matrix.setScale((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+    	matrix.postRotate(orientation);
+    	return transformBitmap(bitmap, matrix, pool);
+    }
+    
+    /**
+     * Draw a bitmap through a matrix into a single new bitmap that exactly fits the result. The
+     * destination is taken from the pool if possible, and the source is given back to the pool (or
+     * recycled) once it has been drawn.
+     *
+     * @param source The bitmap to transform, which must not be used again by the caller
+     * @param matrix The transformation, it is modified to move the result to the origin
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @return The transformed bitmap
+     */
+    private static Bitmap transformBitmap(Bitmap source, Matrix matrix, BitmapPool pool) {
+    	final RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+    	matrix.mapRect(bounds);
+    	matrix.postTranslate(-bounds.left, -bounds.top);
+    	final int width = Math.max(1, Math.round(bounds.right - bounds.left));
+    	final int height = Math.max(1, Math.round(bounds.bottom - bounds.top));
+    	
+    	final Bitmap.Config config = source.getConfig() != null
+    			? source.getConfig() : Bitmap.Config.ARGB_8888;
+    	Bitmap result = pool != null ? pool.get(width, height, config) : null;
+    	if (result == null) {
+    		result = Bitmap.createBitmap(width, height, config);
+    	} else {
+    		result.eraseColor(Color.TRANSPARENT);
+    	}
     	
-    	return bitmap;
+    	final Canvas canvas = new Canvas(result);
+    	canvas.drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+    	
+    	if (pool == null || !pool.put(source)) {
+    		source.recycle();
+    	}
+    	return result;
     }
     
     /**
@@ -219,61 +430,198 @@ public class ImageResizer extends ImageWorker {
      * @param filename The full path of the file to decode
      * @param reqWidth The requested width of the resulting bitmap
      * @param reqHeight The requested height of the resulting bitmap
-     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
-     *         that are equal to or greater than the requested width and height
+     * @return An upright bitmap with the same aspect ratio as the original, scaled down to fit
+     *         exactly inside the requested width and height
      */
-    public static synchronized Bitmap decodeSampledBitmapFromFile(String filename,
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
             int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight, null, null, null, null);
+    }
+
+    /**
+     * Decode and scale down a bitmap from a file to the requested width and height, reusing a
+     * bitmap from the given pool if possible. The image is subsampled by a power of two while
+     * decoding and then scaled and rotated to its exact size in one filtered draw. This is safe to
+     * call from several threads at once, the budget limits how much memory the concurrent decodes
+     * can take.
+     *
+     * @param filename The full path of the file to decode
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @param budget The memory budget to decode within, may be null for no limit
+     * @param orientations Known image orientations to use and add to, may be null
+     * @param identity The identity of the image, as resolved by a {@link CacheKeyStrategy}, that
+     *            its orientation is remembered under. May be null to not use orientations.
+     * @return An upright bitmap with the same aspect ratio as the original, scaled down to fit
+     *         exactly inside the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
+            int reqWidth, int reqHeight, BitmapPool pool, DecodeBudget budget,
+            OrientationCache orientations, String identity) {
+
+        // Read the orientation from the EXIF header if it isn't already known
+        final int orientation = getOrientation(orientations, identity, filename);
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(filename, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Unable to decode image bounds. File: " + filename);
+            return null;
+        }
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        // Work out the exact size to scale to, and sample down as far as possible without going
+        // below it
+        final int[] targetSize = calculateTargetSize(options, orientation, reqWidth, reqHeight);
+        options.inSampleSize =
+                calculatePowerOfTwoInSampleSize(options, targetSize[0], targetSize[1]);
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        
-        Bitmap bitmap = BitmapFactory.decodeFile(filename, options);
-        return getRotation(bitmap, filename);
+        final int acquired = acquireBudget(budget, options, targetSize);
+        try {
+            // Decode bitmap with inSampleSize set
+            options.inJustDecodeBounds = false;
+            BitmapPool.addInBitmapOptions(options, pool);
+
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeFile(filename, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap couldn't be reused after all
+                BitmapPool.removeInBitmapOptions(options);
+                bitmap = BitmapFactory.decodeFile(filename, options);
+            }
+            if (bitmap == null) {
+                return null;
+            }
+            return scaleAndRotateBitmap(bitmap, targetSize[0], targetSize[1], orientation, pool);
+        } finally {
+            releaseBudget(budget, acquired);
+        }
     }
     
     public static Bitmap getRotation(Bitmap bitmap, String filepath) {
-    	ExifInterface exif = null;
-    	try {
-        	exif = new ExifInterface(filepath);
-    	} catch (IOException ioe) {
-    		Log.e(TAG, "IO Exception reading image EXIF data. Uri: " + filepath);
+    	return rotateBitmap(bitmap, getOrientation(null, null, filepath));
+    }
+    
+    /**
+     * Get the orientation of an image file, from the cache if it's there or from the EXIF header
+     * of the file if not.
+     *
+     * @param orientations Known image orientations, may be null
+     * @param key The key of the image in the cache, may be null to not use the cache
+     * @param filepath The full path of the image
+     * @return The orientation in degrees
+     */
+    private static int getOrientation(OrientationCache orientations, String key,
+    		String filepath) {
+    	final Integer cached = orientations != null && key != null ? orientations.get(key) : null;
+    	if (cached != null) {
+    		return cached;
     	}
-    	int orientationCode = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 0);
     	
-    	int orientation;
-    	switch(orientationCode) {
-    	case ExifInterface.ORIENTATION_ROTATE_90:
-    		orientation = 90;
-    		break;
-    	case ExifInterface.ORIENTATION_ROTATE_180:
-    		orientation = 180;
-    		break;
-    	case ExifInterface.ORIENTATION_ROTATE_270:
-    		orientation = 270;
-    		break;
-    	default:
-    		orientation = 0;
-    		break;
+    	InputStream input = null;
+    	try {
+    		input = new BufferedInputStream(new FileInputStream(filepath), Utils.IO_BUFFER_SIZE);
+    		return getOrientation(orientations, key, input);
+    	} catch (FileNotFoundException fnfe) {
+    		Log.e(TAG, "File not found exception reading image EXIF data. Uri: " + filepath);
+    		return 0;
+    	} finally {
+    		if (input != null) {
+    			try {
+    				input.close();
+    			} catch (IOException ioe) {
+    				// Ignore
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Get the orientation of an image, from the cache if it's there or from the EXIF header at the
+     * start of the given stream if not.
+     *
+     * @param orientations Known image orientations, may be null
+     * @param key The key of the image in the cache, may be null to not use the cache
+     * @param input A stream positioned at the start of the image
+     * @return The orientation in degrees
+     */
+    private static int getOrientation(OrientationCache orientations, String key,
+    		InputStream input) {
+    	final Integer cached = orientations != null && key != null ? orientations.get(key) : null;
+    	if (cached != null) {
+    		return cached;
     	}
     	
+    	final int orientation = ExifReader.readOrientation(input, HEADER_BUFFER_SIZE);
+    	if (orientation == ExifReader.ORIENTATION_UNKNOWN) {
+    		// Show it unrotated this time, but don't remember a guess so the next decode tries again
+    		Log.d(TAG, "Unable to read orientation from EXIF data");
+    		return 0;
+    	}
     	Log.d(TAG, "Orientation detected from EXIF data as: " + orientation);
-    	
-    	if (orientation > 0) {
-        	Matrix matrix = new Matrix();
-            matrix.postRotate(orientation);
-        	bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    	if (orientations != null && key != null) {
+    		orientations.put(key, orientation);
+    	}
+    	return orientation;
+    }
+
+    /**
+     * Calculate the size an image should be scaled to so that, once rotated, it fits exactly inside
+     * the requested width and height with its aspect ratio kept. Images are never scaled up.
+     *
+     * @param options An options object with out* params already populated (run through a decode*
+     *            method with inJustDecodeBounds==true
+     * @param orientation The rotation in degrees the image will be displayed with
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @return The width and height to scale the image to, before rotating it
+     */
+    public static int[] calculateTargetSize(BitmapFactory.Options options, int orientation,
+            int reqWidth, int reqHeight) {
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return new int[] { width, height };
         }
-    	
-    	return bitmap;
+
+        // A quarter turn swaps which side of the image ends up horizontal
+        final boolean sideways = orientation == 90 || orientation == 270;
+        final int fitWidth = sideways ? reqHeight : reqWidth;
+        final int fitHeight = sideways ? reqWidth : reqHeight;
+
+        final float scale = Math.min(1f,
+                Math.min((float) fitWidth / width, (float) fitHeight / height));
+        return new int[] {
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)) };
+    }
+
+    /**
+     * Calculate the largest power of two inSampleSize that still decodes an image at least as big
+     * as the size it will be scaled to. Decoders can subsample by powers of two much more cheaply
+     * than other factors, and the final scale to the exact size is left to a filtered draw.
+     *
+     * @param options An options object with out* params already populated (run through a decode*
+     *            method with inJustDecodeBounds==true
+     * @param targetWidth The width the decoded image will be scaled to
+     * @param targetHeight The height the decoded image will be scaled to
+     * @return The value to be used for inSampleSize
+     */
+    public static int calculatePowerOfTwoInSampleSize(BitmapFactory.Options options,
+            int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return inSampleSize;
+        }
+        // Never sample past the size of the image itself
+        while (inSampleSize * 2 <= options.outWidth && inSampleSize * 2 <= options.outHeight
+                && options.outWidth / (inSampleSize * 2) >= targetWidth
+                && options.outHeight / (inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
     }
 
     /**
@@ -323,4 +671,34 @@ public class ImageResizer extends ImageWorker {
         }
         return inSampleSize;
     }
-}
\ No newline at end of file
+
+    /**
+     * A buffered stream that can always go back to its start as long as no more than headerSize
+     * bytes have been read. BitmapFactory marks the stream itself, which would otherwise move or
+     * shrink the mark, but every decode here starts from the beginning so the mark never needs to
+     * move.
+     */
+    private static class RewindableInputStream extends BufferedInputStream {
+        RewindableInputStream(InputStream in, int headerSize) {
+            super(in);
+            super.mark(headerSize);
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            // Keep the mark at the start of the stream
+        }
+
+        /**
+         * @return true if the stream is back at its start, false if too much has been read
+         */
+        boolean rewind() {
+            try {
+                reset();
+                return true;
+            } catch (final IOException e) {
+                return false;
+            }
+        }
+    }
+}
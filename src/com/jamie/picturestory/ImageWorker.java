@@ -17,6 +17,12 @@
 package com.jamie.picturestory;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -24,7 +30,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -36,14 +43,84 @@ import android.widget.ImageView;
 public abstract class ImageWorker {
     private static final String TAG = "ImageWorker";
 
+    // Work for the page being looked at is queued after work for pages that have been swiped past,
+    // so the executors run the most recently queued work first
+    private static final int CACHE_THREAD_COUNT = 2;
+    private static LifoExecutor sCacheExecutor;
+    private static LifoExecutor sDecodeExecutor;
+
     private ImageCache mImageCache;
+    private CacheKeyStrategy mCacheKeyStrategy;
     private Bitmap mLoadingBitmap;
-    private boolean mExitTasksEarly = false;
+    private volatile boolean mExitTasksEarly = false;
+
+    private Executor mCacheExecutor;
+    private Executor mDecodeExecutor;
+    private Executor mResultExecutor;
+
+    // Priorities of the different kinds of request on the executors
+    private static final int PRIORITY_DISPLAY = 0;
+    private static final int PRIORITY_SYNCHRONOUS = 1;
+
+    // In-flight requests keyed by cache key, so that concurrent loads of the same image attach to
+    // a single request and only process it once. Guarded by itself.
+    private final HashMap<String, BitmapRequest> mRequests = new HashMap<String, BitmapRequest>();
+
+    // Outstanding prefetches keyed by cache key. Guarded by mRequests.
+    private final HashMap<String, PrefetchCallback> mPrefetches =
+            new HashMap<String, PrefetchCallback>();
 
     protected Context mContext;
 
     protected ImageWorker(Context context) {
         mContext = context;
+        mCacheExecutor = getDefaultCacheExecutor();
+        mDecodeExecutor = getDefaultDecodeExecutor();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mResultExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * @return The executor shared by all ImageWorkers for disk cache lookups
+     */
+    public static synchronized LifoExecutor getDefaultCacheExecutor() {
+        if (sCacheExecutor == null) {
+            sCacheExecutor = new LifoExecutor(CACHE_THREAD_COUNT, "ImageWorker cache");
+        }
+        return sCacheExecutor;
+    }
+
+    /**
+     * @return The executor shared by all ImageWorkers for processing images, with one thread per
+     *         core
+     */
+    public static synchronized LifoExecutor getDefaultDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            sDecodeExecutor = new LifoExecutor(
+                    LifoExecutor.getDefaultThreadCount(), "ImageWorker decode");
+        }
+        return sDecodeExecutor;
+    }
+
+    /**
+     * Replace the executors that run this worker's tasks. Disk cache lookups are quick compared
+     * to a full decode, so they are queued separately and a cache hit never waits behind decodes
+     * of other images. Tests can pass in executors that run tasks deterministically.
+     *
+     * @param cacheExecutor Runs disk cache lookups
+     * @param decodeExecutor Runs {@link ImageWorker#processBitmap(Object)} after a cache miss
+     * @param resultExecutor Delivers results to the ImageView, must run tasks on the UI thread
+     */
+    public void setExecutors(
+            Executor cacheExecutor, Executor decodeExecutor, Executor resultExecutor) {
+        mCacheExecutor = cacheExecutor;
+        mDecodeExecutor = decodeExecutor;
+        mResultExecutor = resultExecutor;
     }
 
     /**
@@ -51,50 +128,153 @@ public abstract class ImageWorker {
      * {@link ImageWorker#processBitmap(Object)} to define the processing logic). A memory and disk
      * cache will be used if an {@link ImageCache} has been set using
      * {@link ImageWorker#setImageCache(ImageCache)}. If the image is found in the memory cache, it
-     * is set immediately, otherwise an {@link AsyncTask} will be created to asynchronously load the
-     * bitmap.
+     * is set immediately, otherwise a task will be queued to asynchronously load the bitmap.
      *
      * @param data The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
      */
     public void loadImage(Object data, ImageView imageView) {
         Bitmap bitmap = null;
+        final String key = getCacheKey(data);
 
         if (mImageCache != null) {
-            bitmap = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            // The bitmap stays retained for as long as it is displayed, see releaseImage()
+            bitmap = mImageCache.retainBitmapFromMemCache(key);
         }
 
         if (bitmap != null) {
             // Bitmap found in memory cache
             imageView.setImageBitmap(bitmap);
         } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
+            final BitmapWorkerTask task = new BitmapWorkerTask(data, key, imageView);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mContext.getResources(), mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
-            task.execute(data);
+            task.execute();
         }
     }
     
+    /**
+     * Warm the memory cache with the image specified by data so that a later
+     * {@link ImageWorker#loadImage(Object, ImageView)} for it is an immediate memory cache hit.
+     * Does nothing if the image is already in the memory cache or being prefetched, or if there is
+     * no {@link ImageCache} to put it in.
+     *
+     * @param data The image to load
+     * @param priority Where to queue the work relative to other work; priorities should be
+     *            negative so that prefetches never hold up images that are being displayed
+     */
+    public void prefetch(Object data, int priority) {
+        if (mImageCache == null) {
+            return;
+        }
+
+        final String key = getCacheKey(data);
+        synchronized (mRequests) {
+            if (mPrefetches.containsKey(key)
+                    || mImageCache.getBitmapFromMemCache(key, false) != null) {
+                return;
+            }
+            final PrefetchCallback callback = new PrefetchCallback(key);
+            mPrefetches.put(key, callback);
+            callback.request = attachRequest(data, key, callback, priority);
+        }
+    }
+
+    /**
+     * Cancel all outstanding prefetches except those for the given cache keys.
+     *
+     * @param keys The keys of the prefetches to keep, may be empty
+     */
+    public void cancelPrefetchesExcept(Collection<String> keys) {
+        synchronized (mRequests) {
+            final Iterator<PrefetchCallback> it = mPrefetches.values().iterator();
+            while (it.hasNext()) {
+                final PrefetchCallback callback = it.next();
+                if (!keys.contains(callback.key)) {
+                    it.remove();
+                    detachRequest(callback.request, callback);
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "cancelPrefetchesExcept - cancelled prefetch for "
+                                + callback.key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load an image on the calling thread, which must not be the UI thread. If the same image is
+     * already being loaded for another caller this waits for that load rather than starting a new
+     * one. The returned bitmap is retained in the {@link ImageCache} (if there is one) on behalf of
+     * the caller, who must release it with {@link ImageCache#releaseBitmap(Bitmap)} when done.
+     *
+     * @param data The image to load
+     * @return The bitmap, or null if it couldn't be loaded or the thread was interrupted before it
+     *         was
+     */
     public Bitmap getBitmapSynchronous(Object data) {
-    	Bitmap bitmap = null;
-    	
-    	// If there is an image cache we should check in it for image
-    	if (mImageCache != null) {
-    		bitmap = mImageCache.getBitmapFromMemCache(String.valueOf(data));
-    		
-    		// If bitmap wasn't found in memory, check disk cache
-            if (bitmap == null) {
-            	bitmap = mImageCache.getBitmapFromDiskCache(String.valueOf(data));
+        final String key = getCacheKey(data);
+        if (mImageCache != null) {
+            final Bitmap bitmap = mImageCache.retainBitmapFromMemCache(key);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        final SynchronousCallback callback = new SynchronousCallback();
+        final BitmapRequest request;
+        synchronized (mRequests) {
+            request = attachRequest(data, key, callback, PRIORITY_SYNCHRONOUS);
+        }
+        try {
+            callback.latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Stop waiting, cancelling the request if nothing else wants it
+            synchronized (mRequests) {
+                detachRequest(request, callback);
+            }
+            return callback.abandon();
+        }
+        return callback.bitmap;
+    }
+
+    /**
+     * Attach a callback to the in-flight request for data, starting a new request if there isn't
+     * one. Must be called with mRequests held.
+     */
+    private BitmapRequest attachRequest(
+            Object data, String key, RequestCallback callback, int priority) {
+        BitmapRequest request = mRequests.get(key);
+        if (request == null) {
+            request = new BitmapRequest(data, key);
+            mRequests.put(key, request);
+        } else if (BuildConfig.DEBUG) {
+            Log.d(TAG, "attachRequest - joined in-flight request for " + key);
+        }
+        request.callbacks.add(callback);
+        request.submit(priority);
+        return request;
+    }
+
+    /**
+     * Detach a callback from its request. Once no callbacks are left the request is cancelled.
+     * Must be called with mRequests held.
+     */
+    private void detachRequest(BitmapRequest request, RequestCallback callback) {
+        if (request == null || !request.callbacks.remove(callback)) {
+            return;
+        }
+        if (request.callbacks.isEmpty() && request.stage != BitmapRequest.STAGE_DONE) {
+            request.cancelled = true;
+            if (mRequests.get(request.key) == request) {
+                mRequests.remove(request.key);
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "detachRequest - cancelled request for " + request.key);
             }
-    	}
-    	
-    	// If bitmap still wasn't found it'll have to be fetched fresh
-    	if (bitmap == null) {
-    		bitmap = processBitmap(data);
-    	}
-    	
-    	return bitmap;
+        }
     }
 
     /**
@@ -128,6 +308,62 @@ public abstract class ImageWorker {
         return mImageCache;
     }
 
+    /**
+     * Set how the images passed to this ImageWorker are identified in the disk cache. Without one,
+     * images are identified by the string value of their data.
+     *
+     * @param cacheKeyStrategy The strategy to use, may be null
+     */
+    public void setCacheKeyStrategy(CacheKeyStrategy cacheKeyStrategy) {
+        mCacheKeyStrategy = cacheKeyStrategy;
+    }
+
+    /**
+     * Get the key that the image for data is held under in the memory cache and that concurrent
+     * loads of it are coalesced on. This is the string value of the data and is cheap to work out,
+     * as it is needed on the UI thread for every image that is loaded.
+     *
+     * @param data The data identifying the image, as passed to
+     *            {@link ImageWorker#loadImage(Object, ImageView)}
+     * @return The cache key
+     */
+    public String getCacheKey(Object data) {
+        return String.valueOf(data) + getKeySuffix();
+    }
+
+    /**
+     * Get the key that the image for data is stored under in the disk cache, which is resolved
+     * by the {@link CacheKeyStrategy} if there is one. Resolving may touch the disk or query a
+     * provider, so this is only called from the cache stage on a background thread.
+     */
+    private String getCanonicalKey(Object data) {
+        final String identity = getIdentity(data);
+        return identity != null ? identity + getKeySuffix() : getCacheKey(data);
+    }
+
+    /**
+     * Resolve data to the identity of the image it refers to. Like the disk cache key this may
+     * touch the disk, so it must only be called on a background thread such as from
+     * {@link ImageWorker#processBitmap(Object)}.
+     *
+     * @param data The data identifying the image
+     * @return The identity from the {@link CacheKeyStrategy}, or null if there isn't one
+     */
+    protected String getIdentity(Object data) {
+        return mCacheKeyStrategy != null ? mCacheKeyStrategy.getIdentity(data) : null;
+    }
+
+    /**
+     * Subclasses whose processing depends on other parameters (such as a target size) should
+     * return them here. The suffix is added to both cache keys so that bitmaps processed
+     * differently are never mixed up.
+     *
+     * @return The suffix, empty by default
+     */
+    protected String getKeySuffix() {
+        return "";
+    }
+
     public void setExitTasksEarly(boolean exitTasksEarly) {
         mExitTasksEarly = exitTasksEarly;
     }
@@ -146,7 +382,7 @@ public abstract class ImageWorker {
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancel();
             if (BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.data;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
@@ -154,6 +390,22 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Cancel any work on the ImageView and clear it. The bitmap it was displaying is released back
+     * to the {@link ImageCache} so that its memory can be reused once it is no longer cached.
+     *
+     * @param imageView
+     */
+    public void releaseImage(ImageView imageView) {
+        cancelWork(imageView);
+        final Drawable drawable = imageView.getDrawable();
+        imageView.setImageDrawable(null);
+        if (mImageCache != null && drawable instanceof BitmapDrawable
+                && !(drawable instanceof AsyncDrawable)) {
+            mImageCache.releaseBitmap(((BitmapDrawable) drawable).getBitmap());
+        }
+    }
+
     /**
      * Returns true if the current work has been canceled or if there was no work in
      * progress on this image view.
@@ -166,7 +418,7 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.data;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.cancel();
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
                 }
@@ -195,67 +447,236 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * Receives the result of a {@link BitmapRequest}, on the thread that completed it.
      */
-    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
-        private Object data;
-        private final WeakReference<ImageView> imageViewReference;
+    private interface RequestCallback {
+        void onResult(Bitmap bitmap);
+    }
 
-        public BitmapWorkerTask(ImageView imageView) {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+    /**
+     * A single load of an image that any number of callbacks can wait on. It first looks in the
+     * caches on the cache executor and, only if that misses, moves on to the decode executor to
+     * process the image. The request is cancelled once every callback has detached from it.
+     *
+     * A request that gains a higher priority callback while it is still queued is queued again at
+     * the higher priority. Whichever copy runs first claims the stage and the other does nothing.
+     */
+    private class BitmapRequest {
+        static final int STAGE_CACHE_QUEUED = 0;
+        static final int STAGE_CACHE = 1;
+        static final int STAGE_DECODE_QUEUED = 2;
+        static final int STAGE_DECODE = 3;
+        static final int STAGE_DONE = 4;
+
+        final Object data;
+        final String key;
+        // The disk cache key, resolved by the cache stage. Only used by the stages, which run one
+        // after the other.
+        String canonicalKey;
+
+        // Guarded by mRequests
+        final ArrayList<RequestCallback> callbacks = new ArrayList<RequestCallback>();
+        int stage = STAGE_CACHE_QUEUED;
+        int priority = Integer.MIN_VALUE;
+        volatile boolean cancelled = false;
+
+        BitmapRequest(Object data, String key) {
+            this.data = data;
+            this.key = key;
         }
 
         /**
-         * Background processing.
+         * Queue the current stage at the given priority if it isn't already queued at the same or
+         * a higher priority. Must be called with mRequests held.
          */
-        @Override
-        protected Bitmap doInBackground(Object... params) {
-            data = params[0];
-            final String dataString = String.valueOf(data);
+        void submit(int newPriority) {
+            if (newPriority <= priority) {
+                return;
+            }
+            priority = newPriority;
+            if (stage == STAGE_CACHE_QUEUED) {
+                (mImageCache != null ? mCacheExecutor : mDecodeExecutor).execute(
+                        new Stage(STAGE_CACHE_QUEUED, newPriority));
+            } else if (stage == STAGE_DECODE_QUEUED) {
+                mDecodeExecutor.execute(new Stage(STAGE_DECODE_QUEUED, newPriority));
+            }
+        }
+
+        /**
+         * Claim a queued stage for the calling thread.
+         *
+         * @return true if the stage was still waiting to run
+         */
+        private boolean claim(int queuedStage) {
+            synchronized (mRequests) {
+                if (cancelled || stage != queuedStage) {
+                    return false;
+                }
+                stage = queuedStage + 1;
+                return true;
+            }
+        }
+
+        private void runCacheStage() {
             Bitmap bitmap = null;
+            if (mImageCache != null && !mExitTasksEarly) {
+                // Whoever started the request already looked, so finding it now isn't another hit
+                bitmap = mImageCache.getBitmapFromMemCache(key, false);
+                if (bitmap == null) {
+                    canonicalKey = getCanonicalKey(data);
+                    bitmap = mImageCache.getBitmapFromDiskCache(canonicalKey);
+                }
+            }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+            if (bitmap == null && !cancelled && !mExitTasksEarly) {
+                synchronized (mRequests) {
+                    stage = STAGE_DECODE_QUEUED;
+                    if (!cancelled) {
+                        mDecodeExecutor.execute(new Stage(STAGE_DECODE_QUEUED, priority));
+                    }
+                }
+            } else {
+                complete(bitmap);
             }
+        }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(params[0]);
+        private void runDecodeStage() {
+            Bitmap bitmap = null;
+
+            // If the bitmap was not found in the cache and this request is still wanted, then call
+            // the main process method (as implemented by a subclass)
+            if (!cancelled && !mExitTasksEarly) {
+                bitmap = processBitmap(data);
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
-            // bitmap to the cache for future use. Note we don't check if the task was cancelled
-            // here, if it was, and the thread is still running, we may as well add the processed
-            // bitmap to our cache as it might be used again in the future
+            // bitmap to the cache for future use. Note we don't check if the request was cancelled
+            // here, if it was, we may as well add the processed bitmap to our cache as it might be
+            // used again in the future.
+            complete(bitmap);
+        }
+
+        private void complete(Bitmap bitmap) {
+            final ArrayList<RequestCallback> waiting;
+            synchronized (mRequests) {
+                stage = STAGE_DONE;
+                if (mRequests.get(key) == this) {
+                    mRequests.remove(key);
+                }
+                waiting = new ArrayList<RequestCallback>(callbacks);
+                callbacks.clear();
+            }
+
+            // Callbacks retain the bitmap before it goes into the memory cache so it can't be
+            // evicted and reused before they get to it
+            for (RequestCallback callback : waiting) {
+                callback.onResult(bitmap);
+            }
+
             if (bitmap != null && mImageCache != null) {
-                mImageCache.addBitmapToCache(dataString, bitmap);
+                mImageCache.addBitmapToCache(
+                        key, canonicalKey != null ? canonicalKey : key, bitmap);
             }
+        }
 
-            return bitmap;
+        /**
+         * One queued run of a stage of the request.
+         */
+        private class Stage implements Runnable, LifoExecutor.Prioritized {
+            private final int queuedStage;
+            private final int stagePriority;
+
+            Stage(int queuedStage, int stagePriority) {
+                this.queuedStage = queuedStage;
+                this.stagePriority = stagePriority;
+            }
+
+            @Override
+            public int getPriority() {
+                return stagePriority;
+            }
+
+            @Override
+            public void run() {
+                if (!claim(queuedStage)) {
+                    return;
+                }
+                if (queuedStage == STAGE_CACHE_QUEUED) {
+                    runCacheStage();
+                } else {
+                    runDecodeStage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the result of a {@link BitmapRequest} to an ImageView.
+     */
+    private class BitmapWorkerTask implements RequestCallback {
+        private final Object data;
+        private final String key;
+        private final WeakReference<ImageView> imageViewReference;
+        private volatile boolean cancelled = false;
+        private BitmapRequest request;
+        private Bitmap result;
+
+        public BitmapWorkerTask(Object data, String key, ImageView imageView) {
+            this.data = data;
+            this.key = key;
+            imageViewReference = new WeakReference<ImageView>(imageView);
+        }
+
+        public void execute() {
+            synchronized (mRequests) {
+                request = attachRequest(data, key, this, PRIORITY_DISPLAY);
+            }
         }
 
         /**
-         * Once the image is processed, associates it to the imageView
+         * Stop waiting for the image. The underlying request is only cancelled if nothing else is
+         * waiting for it.
          */
+        public void cancel() {
+            cancelled = true;
+            synchronized (mRequests) {
+                detachRequest(request, this);
+            }
+        }
+
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
-                bitmap = null;
+        public void onResult(Bitmap bitmap) {
+            // The bitmap is retained until it is either displayed or dropped, so it can't be
+            // reused in the meantime
+            if (bitmap != null && mImageCache != null) {
+                mImageCache.retainBitmap(bitmap);
+            }
+            result = bitmap;
+            mResultExecutor.execute(mPostResult);
+        }
+
+        /**
+         * Once the image is processed, associates it to the imageView
+         */
+        private final Runnable mPostResult = new Runnable() {
+            @Override
+            public void run() {
+                // if cancel was called on this task or the "exit early" flag is set then we're done
+                final ImageView imageView = getAttachedImageView();
+                if (result != null && imageView != null && !cancelled && !mExitTasksEarly) {
+                    setImageBitmap(imageView, result);
+                } else {
+                    releaseResult();
+                }
             }
+        };
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                setImageBitmap(imageView, bitmap);
+        /**
+         * Release the retained result if it won't be displayed.
+         */
+        private void releaseResult() {
+            if (result != null && mImageCache != null) {
+                mImageCache.releaseBitmap(result);
             }
         }
 
@@ -275,6 +696,65 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Waits on a request for a prefetch. The request itself puts the result in the memory cache,
+     * so there's nothing else to do with it.
+     */
+    private class PrefetchCallback implements RequestCallback {
+        private final String key;
+        private BitmapRequest request;
+
+        PrefetchCallback(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onResult(Bitmap bitmap) {
+            synchronized (mRequests) {
+                if (mPrefetches.get(key) == this) {
+                    mPrefetches.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits on a request for {@link ImageWorker#getBitmapSynchronous(Object)}.
+     */
+    private class SynchronousCallback implements RequestCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Bitmap bitmap;
+
+        // Set once the caller has stopped waiting. Guarded by this.
+        private boolean abandoned = false;
+
+        @Override
+        public void onResult(Bitmap result) {
+            synchronized (this) {
+                // A result that arrives after the caller has gone is left to the cache rather
+                // than retained for nobody
+                if (abandoned) {
+                    return;
+                }
+                if (result != null && mImageCache != null) {
+                    mImageCache.retainBitmap(result);
+                }
+                bitmap = result;
+            }
+            latch.countDown();
+        }
+
+        /**
+         * Stop waiting for the result.
+         *
+         * @return The result if it had already been delivered (and retained), otherwise null
+         */
+        synchronized Bitmap abandon() {
+            abandoned = true;
+            return bitmap;
+        }
+    }
+
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress.
      * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
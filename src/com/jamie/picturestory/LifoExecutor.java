@@ -0,0 +1,128 @@
+package com.jamie.picturestory;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * A fixed size thread pool that runs the most recently queued task first. When the user swipes
+ * through pages quickly the page they end up looking at is the last one requested, so it should
+ * be decoded before any pages they have already swiped past.
+ *
+ * Tasks that implement {@link Prioritized} are ordered by priority first (highest first) and only
+ * then by recency. The time tasks spend waiting in the queue is recorded so the pool size can be
+ * tuned.
+ */
+public class LifoExecutor extends ThreadPoolExecutor {
+
+    /**
+     * A task with a priority. Tasks that don't implement this have priority 0.
+     */
+    public interface Prioritized {
+        int getPriority();
+    }
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mTotalQueueNanos = new AtomicLong();
+    private final AtomicLong mDequeuedCount = new AtomicLong();
+
+    /**
+     * @param threadCount The number of worker threads
+     * @param name The name prefix of the worker threads
+     */
+    public LifoExecutor(int threadCount, String name) {
+        super(threadCount, threadCount, 1L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(16, new QueuedTaskComparator()),
+                new BackgroundThreadFactory(name));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command, mSequence.getAndIncrement()));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof QueuedTask) {
+            mTotalQueueNanos.addAndGet(System.nanoTime() - ((QueuedTask) r).mQueuedAt);
+            mDequeuedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The average time in milliseconds that tasks have waited in the queue before running
+     */
+    public double getAverageQueueLatencyMillis() {
+        final long count = mDequeuedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return mTotalQueueNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return The number of threads to use for CPU bound work on this device
+     */
+    public static int getDefaultThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static class QueuedTask implements Runnable {
+        private final Runnable mTask;
+        private final int mPriority;
+        private final long mSequence;
+        private final long mQueuedAt;
+
+        QueuedTask(Runnable task, long sequence) {
+            mTask = task;
+            mPriority = task instanceof Prioritized ? ((Prioritized) task).getPriority() : 0;
+            mSequence = sequence;
+            mQueuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+
+    private static class QueuedTaskComparator implements Comparator<Runnable> {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            final QueuedTask l = (QueuedTask) lhs;
+            final QueuedTask r = (QueuedTask) rhs;
+            if (l.mPriority != r.mPriority) {
+                return l.mPriority > r.mPriority ? -1 : 1;
+            }
+            // Newest first
+            return l.mSequence > r.mSequence ? -1 : (l.mSequence == r.mSequence ? 0 : 1);
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
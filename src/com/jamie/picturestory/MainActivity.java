@@ -1,16 +1,22 @@
 package com.jamie.picturestory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
+import android.annotation.SuppressLint;
 import android.app.AlertDialog;
+import android.content.ComponentCallbacks2;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
+import android.media.MediaScannerConnection;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.provider.MediaStore;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.ViewPager;
@@ -21,25 +27,34 @@ import android.view.Window;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
+import android.widget.Toast;
 
 public class MainActivity extends FragmentActivity {
 	private static final String TAG = "MainActivity";
 	
 	private static final String IMAGE_CACHE_DIR = "images";
 	
-	private static final String SAVE_URIS_KEY = "Uris";
-	private static final String SAVE_AUDIO_PATH_KEY = "Audio path";
+	// The pages, audio and transitions are saved here rather than in the instance state, which
+	// has a size limit that long stories would go over
+	private static final String PROJECT_FILE = "story.psp";
+	
 	private static final String SAVE_MODE_KEY = "Mode";
-	private static final String SAVE_TRANSITIONS_KEY = "Transitions";
 	private static final String SAVE_CAMERA_URI = "Camera Uri";
 	private static final String SAVE_HAS_RECORDED_KEY = "Has recorded";
 	
 	private static final int IMAGE_PICK = 0;
 	
+	// Exported videos are Motion JPEG, pages only change every few seconds so a low frame rate
+	// and size keep the files small
+	private static final int EXPORT_FRAME_RATE = 15;
+	private static final int EXPORT_MAX_SIZE = 640;
+	private static final int EXPORT_QUALITY = 85;
+	
 	// Viewpager and associated objects
 	private ViewPager mPager;
 	private ListPagerAdapter mAdapter;
 	private ImageResizer mImageWorker;
+	private PagePrefetcher mPrefetcher;
 	
 	// Records whether we're in image editing or recording mode
 	private int mMode;
@@ -61,7 +76,12 @@ public class MainActivity extends FragmentActivity {
 	// Story transition recording
 	private ArrayList<StoryTransition> mStoryTransitions;
 	private MilliTimer mTimer;
-	private Handler mHandler;
+	private StoryPlayer mStoryPlayer;
+	private ExportTask mExportTask;
+	
+	// The story is saved to the project file, which is written as transitions are recorded
+	private File mProjectFile;
+	private StoryProject.Writer mProjectWriter;
 	
 	// Audio record class variables
 	private String mAudioFilePath;
@@ -90,19 +110,34 @@ public class MainActivity extends FragmentActivity {
         final int width = displayMetrics.widthPixels;
         
         // Create the image worker that fetches and processes images
-        mImageWorker = new ImageResizer(this, height, width);
-        mImageWorker.setImageCache(ImageCache.findOrCreateCache(this, IMAGE_CACHE_DIR));
+        mImageWorker = new ImageResizer(this, width, height);
+        final ImageCache.ImageCacheParams cacheParams =
+                new ImageCache.ImageCacheParams(IMAGE_CACHE_DIR);
+        cacheParams.setAdaptiveSizes(this);
+        mImageWorker.setImageCache(ImageCache.findOrCreateCache(this, cacheParams));
         
         // Check for any saved instance state data so we can restore the app after
         // configuration change (like rotation).
+        mProjectFile = new File(getFilesDir(), PROJECT_FILE);
+        StoryProject project = null;
         if (savedInstanceState != null) {
-        	ArrayList<Uri> pageUris = savedInstanceState.getParcelableArrayList(SAVE_URIS_KEY);
-        	mAdapter = new ListPagerAdapter(pageUris, getSupportFragmentManager());
-        	mAudioFilePath = savedInstanceState.getString(SAVE_AUDIO_PATH_KEY);
+        	try {
+        		project = StoryProject.load(mProjectFile);
+        	} catch (IOException e) {
+        		Log.e(TAG, "Error loading story: " + e.getMessage());
+        	}
+        }
+        if (project != null) {
+        	mAdapter = new ListPagerAdapter(project.getPageUris(), getSupportFragmentManager());
+        	mAudioFilePath = project.getAudioFilePath();
+        	if (mAudioFilePath == null) {
+        		mAudioFilePath = Utils.getOutputAudioFilePath(getApplicationContext());
+        	}
         	mMode = savedInstanceState.getInt(SAVE_MODE_KEY);
-        	mStoryTransitions = savedInstanceState.getParcelableArrayList(SAVE_TRANSITIONS_KEY);
+        	mStoryTransitions = project.getTransitions();
         	mLastCameraUri = savedInstanceState.getString(SAVE_CAMERA_URI);
-        	mHasRecorded = savedInstanceState.getBoolean(SAVE_HAS_RECORDED_KEY);
+        	mHasRecorded = savedInstanceState.getBoolean(SAVE_HAS_RECORDED_KEY)
+        			&& mStoryTransitions != null;
         } else {
         	mAdapter = new ListPagerAdapter(getSupportFragmentManager());
         	mAudioFilePath = Utils.getOutputAudioFilePath(getApplicationContext());
@@ -113,12 +148,17 @@ public class MainActivity extends FragmentActivity {
         mPager = (ViewPager) findViewById(R.id.pager);
         mPager.setAdapter(mAdapter);
         mPager.setPageMargin((int) getResources().getDimension(R.dimen.pager_margin));
+        mPrefetcher = new PagePrefetcher(mImageWorker, mPager.getOffscreenPageLimit());
         mPager.setOnPageChangeListener( new ViewPager.SimpleOnPageChangeListener() {
         	
         	@Override
         	public void onPageSelected(int position) {
         		if (!mStartRecording) { // If we're recording
-        			mStoryTransitions.add(new StoryTransition(position, mTimer.getTime()));
+        			recordTransition(new StoryTransition(position, mTimer.getTime()));
+        		}
+        		// During playback the transitions decide what gets prefetched
+        		if (mStartPlaying) {
+        			mPrefetcher.onPageSelected(mAdapter.getPageUris(), position);
         		}
             	//Log.d(TAG, "Pager position: " + position + ", at time: " + System.currentTimeMillis());
             }
@@ -205,6 +245,13 @@ public class MainActivity extends FragmentActivity {
 				togglePlayback();
 			}
 		});
+        mPlayButton.setOnLongClickListener(new View.OnLongClickListener() {
+			
+			@Override
+			public boolean onLongClick(View v) {
+				return exportVideo();
+			}
+		});
         if (mHasRecorded) {
         	mPlayButton.setEnabled(true);
         }
@@ -241,10 +288,8 @@ public class MainActivity extends FragmentActivity {
     
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-    	outState.putParcelableArrayList(SAVE_URIS_KEY, mAdapter.getPageUris());
-    	outState.putString(SAVE_AUDIO_PATH_KEY, mAudioFilePath);
+    	saveProject();
     	outState.putInt(SAVE_MODE_KEY, mMode);
-    	outState.putParcelableArrayList(SAVE_TRANSITIONS_KEY, mStoryTransitions);
     	outState.putString(SAVE_CAMERA_URI, mLastCameraUri);
     	outState.putBoolean(SAVE_HAS_RECORDED_KEY, mHasRecorded);
         super.onSaveInstanceState(outState);
@@ -259,16 +304,47 @@ public class MainActivity extends FragmentActivity {
             mRecorder.release();
             mRecorder = null;
         }
+        closeProjectWriter();
 
         if (mPlayer != null) {
             mPlayer.release();
             mPlayer = null;
         }
-        if (mHandler != null) {
-        	mHandler.removeCallbacks(null);
+        if (mStoryPlayer != null) {
+        	mStoryPlayer.stop();
+        }
+        mPrefetcher.cancelAll();
+        if (mExportTask != null) {
+        	mExportTask.cancelExport();
+        	mExportTask = null;
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The retained cache goes away with the activity when it finishes, so make sure anything
+        // still queued for the disk cache gets written
+        if (isFinishing()) {
+            mImageWorker.getImageCache().close();
         }
     }
     
+    // Shrink the image caches when the system is short of memory. onTrimMemory is only called
+    // from ICS onwards, older versions only get onLowMemory
+    @SuppressLint("NewApi")
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mImageWorker.getImageCache().onTrimMemory(level);
+    }
+    
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mImageWorker.getImageCache().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+    
     private void removeCurrentItem() {
     	int position = mPager.getCurrentItem();
     	if (position > 0) {
@@ -350,31 +426,37 @@ public class MainActivity extends FragmentActivity {
     }
     
     private void startTransitions() {
-    	// Move to the first page
-    	int firstPage = mStoryTransitions.get(0).getPosition();
-    	mPager.setCurrentItem(firstPage, true);
-    	
-    	// Queue all the transitions in a handler
-    	mHandler = new Handler();
-        for (int i = 1; i < mStoryTransitions.size() - 1; i++) {
-        	final StoryTransition transition = mStoryTransitions.get(i);
-        	Runnable runner = new Runnable() {
-        		public void run() {
-        			mPager.setCurrentItem(transition.getPosition(), true);
-        		}
-        	};
-        	mHandler.postDelayed(runner, transition.getTime());
-        }
+    	// Page flips are timed against the audio so they stay in step with the narration,
+    	// starting with the page the recording began on
+    	final MediaPlayer player = mPlayer;
+    	final StoryTimeline timeline = StoryTimeline.fromTransitions(mStoryTransitions);
+    	mStoryPlayer = new StoryPlayer(timeline, new StoryPlayer.Clock() {
+    		
+    		@Override
+    		public long getTime() {
+    			return player.getCurrentPosition();
+    		}
+    	}, new StoryPlayer.Listener() {
+    		
+    		@Override
+    		public void onTransition(int position, int nextIndex) {
+    			mPager.setCurrentItem(position, true);
+    			mPrefetcher.onPlaybackProgress(mAdapter.getPageUris(), timeline, nextIndex);
+    		}
+    	});
+    	mStoryPlayer.start();
     }
 
     private void stopPlaying() {
+        // Stop any transitions before the player they're timed against goes away
+        if (mStoryPlayer != null) {
+        	mStoryPlayer.stop();
+        	mStoryPlayer = null;
+        }
+        
         mPlayer.release();
         mPlayer = null;
-        
-        // Stop any transitions
-        if (mHandler != null) {
-        	mHandler.removeCallbacks(null);
-        }
+        mPrefetcher.cancelAll();
         
         mPlayButton.setImageDrawable(getResources().getDrawable(R.drawable.av_play));
         mPlayButton.setContentDescription(getResources().getString(R.string.stopped_play_button_text));
@@ -382,6 +464,39 @@ public class MainActivity extends FragmentActivity {
         mPlayIndicator.setVisibility(View.INVISIBLE);
     }
 
+    /**
+     * Render the recorded story and its narration to a video file in the background. Devices
+     * older than Jelly Bean can't decode the narration, so only the pages are exported there.
+     *
+     * @return Whether an export was started
+     */
+    private boolean exportVideo() {
+    	// Only a finished recording can be exported, and only one at a time
+    	if (!mHasRecorded || mStoryTransitions == null || !mStartPlaying || !mStartRecording
+    			|| mExportTask != null) {
+    		return false;
+    	}
+    	final String path = Utils.getOutputVideoFilePath();
+    	if (path == null) {
+    		Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+    		return true;
+    	}
+    	
+    	// Keep the shape of the screen the story was made on, scaled down and with even sides
+    	final DisplayMetrics metrics = getResources().getDisplayMetrics();
+    	final float scale = Math.min(1f,
+    			(float) EXPORT_MAX_SIZE / Math.max(metrics.widthPixels, metrics.heightPixels));
+    	final int width = Math.round(metrics.widthPixels * scale) & ~1;
+    	final int height = Math.round(metrics.heightPixels * scale) & ~1;
+    	
+    	mExportTask = new ExportTask(StoryTimeline.fromTransitions(mStoryTransitions),
+    			new ArrayList<Uri>(mAdapter.getPageUris()), mAudioFilePath, new File(path),
+    			width, height);
+    	mExportTask.execute();
+    	Toast.makeText(this, R.string.export_started, Toast.LENGTH_SHORT).show();
+    	return true;
+    }
+
     private void startRecording() {
     	mRecorder = new MediaRecorder();
         mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
@@ -395,11 +510,27 @@ public class MainActivity extends FragmentActivity {
             Log.e(TAG, "prepare() failed");
         }
 
+        // Recording begins somewhere inside start(), which can take a while to return. Assume
+        // it's half way through so flips are at most half the start latency out from the audio.
+        final MilliTimer startLatency = new MilliTimer();
         mRecorder.start();
         
         mTimer = new MilliTimer();
+        mTimer.setOffset(startLatency.getTime() / 2);
         mStoryTransitions = new ArrayList<StoryTransition>();
-        mStoryTransitions.add(new StoryTransition(mPager.getCurrentItem(), 0));
+        
+        // Start the project file afresh so the recording is saved as it goes
+        closeProjectWriter();
+        try {
+        	mProjectWriter = new StoryProject.Writer(mProjectFile);
+        	mProjectWriter.writeAudioFilePath(mAudioFilePath);
+        	mProjectWriter.writePageUris(mAdapter.getPageUris());
+        	mProjectWriter.beginRecording();
+        } catch (IOException e) {
+        	Log.e(TAG, "Error starting story file: " + e.getMessage());
+        	closeProjectWriter();
+        }
+        recordTransition(new StoryTransition(mPager.getCurrentItem(), 0));
         
         mRecordButton.setImageDrawable(getResources().getDrawable(R.drawable.stop));
         mRecordButton.setContentDescription(getResources().getString(R.string.started_record_button_text));
@@ -414,7 +545,8 @@ public class MainActivity extends FragmentActivity {
         mRecorder.release();
         mRecorder = null;
         
-        mStoryTransitions.add(new StoryTransition(-1, mTimer.getTime()));
+        recordTransition(new StoryTransition(-1, mTimer.getTime()));
+        closeProjectWriter();
         
         mRecordButton.setImageDrawable(getResources().getDrawable(R.drawable.device_access_mic));
         mRecordButton.setContentDescription(getResources().getString(R.string.stopped_record_button_text));
@@ -425,6 +557,42 @@ public class MainActivity extends FragmentActivity {
         mHasRecorded = true;
     }
     
+    private void recordTransition(StoryTransition transition) {
+    	mStoryTransitions.add(transition);
+    	if (mProjectWriter != null) {
+    		try {
+    			mProjectWriter.writeTransition(transition);
+    		} catch (IOException e) {
+    			Log.e(TAG, "Error saving transition: " + e.getMessage());
+    			closeProjectWriter();
+    		}
+    	}
+    }
+    
+    private void closeProjectWriter() {
+    	if (mProjectWriter != null) {
+    		try {
+    			mProjectWriter.close();
+    		} catch (IOException e) {
+    			Log.e(TAG, "Error closing story file: " + e.getMessage());
+    		}
+    		mProjectWriter = null;
+    	}
+    }
+    
+    private void saveProject() {
+    	// While recording, the project file is already up to date
+    	if (mProjectWriter != null) {
+    		return;
+    	}
+    	try {
+    		StoryProject.save(mProjectFile, mAdapter.getPageUris(), mAudioFilePath,
+    				mStoryTransitions);
+    	} catch (IOException e) {
+    		Log.e(TAG, "Error saving story: " + e.getMessage());
+    	}
+    }
+    
     private void openImageIntent() {
         // Camera intent
         Intent cameraIntent = new Intent(android.provider.MediaStore.ACTION_IMAGE_CAPTURE);
@@ -458,4 +626,122 @@ public class MainActivity extends FragmentActivity {
     			.setNegativeButton(R.string.cancel, null);
     	builder.show();
     }
-}
\ No newline at end of file
+    
+    /**
+     * Exports the story through a {@link SlideshowExporter}, loading the pages with the image
+     * worker on the exporter's loader thread and encoding them, along with the narration, on this
+     * task's thread.
+     */
+    private class ExportTask extends AsyncTask<Void, Void, Boolean> {
+    	private final StoryTimeline mTimeline;
+    	private final List<Uri> mPageUris;
+    	private final String mNarrationPath;
+    	private final File mFile;
+    	private final int mWidth;
+    	private final int mHeight;
+    	
+    	private boolean mHasNarration = false;
+    	
+    	// Made once the narration's length is known. Guarded by this.
+    	private SlideshowExporter<Bitmap> mExporter;
+    	private boolean mExportCancelled = false;
+    	
+    	ExportTask(StoryTimeline timeline, List<Uri> pageUris, String narrationPath, File file,
+    			int width, int height) {
+    		mTimeline = timeline;
+    		mPageUris = pageUris;
+    		mNarrationPath = narrationPath;
+    		mFile = file;
+    		mWidth = width;
+    		mHeight = height;
+    	}
+    	
+    	/**
+    	 * Stop the export, deleting the partly written video.
+    	 */
+    	void cancelExport() {
+    		synchronized (this) {
+    			mExportCancelled = true;
+    			if (mExporter != null) {
+    				mExporter.cancel();
+    			}
+    		}
+    		cancel(false);
+    	}
+    	
+    	@Override
+    	protected Boolean doInBackground(Void... params) {
+    		NarrationDecoder narration = null;
+    		MjpegFrameSink sink = null;
+    		boolean exported = false;
+    		try {
+    			if (NarrationDecoder.isSupported()) {
+    				narration = new NarrationDecoder(mNarrationPath);
+    				mHasNarration = true;
+    			}
+    			
+    			// The video runs for as long as the narration, even if the recording ended early
+    			final SlideshowExporter<Bitmap> exporter = new SlideshowExporter<Bitmap>(mTimeline,
+    					EXPORT_FRAME_RATE, narration != null ? narration.getDuration() : 0);
+    			synchronized (this) {
+    				if (mExportCancelled) {
+    					return false;
+    				}
+    				mExporter = exporter;
+    			}
+    			
+    			sink = new MjpegFrameSink(mFile, mWidth, mHeight, EXPORT_FRAME_RATE, EXPORT_QUALITY,
+    					narration);
+    			exporter.export(new PageFrameSource(mImageWorker, mPageUris), sink);
+    			exported = true;
+    			Log.d(TAG, "Exported " + exporter.getFrameCount() + " frames to " + mFile);
+    		} catch (IOException e) {
+    			Log.e(TAG, "Error exporting video: " + e.getMessage());
+    		} catch (InterruptedException e) {
+    			Log.d(TAG, "Export cancelled");
+    		} finally {
+    			if (sink != null) {
+    				try {
+    					// Writes the rest of the narration, so the decoder must still be open
+    					sink.close();
+    				} catch (IOException e) {
+    					Log.e(TAG, "Error closing video: " + e.getMessage());
+    					exported = false;
+    				}
+    			}
+    			if (narration != null) {
+    				narration.close();
+    			}
+    			if (!exported) {
+    				mFile.delete();
+    			}
+    		}
+    		return exported;
+    	}
+    	
+    	@Override
+    	protected void onPostExecute(Boolean exported) {
+    		if (mExportTask == this) {
+    			mExportTask = null;
+    		}
+    		if (exported) {
+    			// Let the gallery and other apps find the video
+    			MediaScannerConnection.scanFile(MainActivity.this,
+    					new String[] { mFile.getPath() }, null, null);
+    			Toast.makeText(MainActivity.this, getString(mHasNarration
+    					? R.string.export_finished : R.string.export_finished_without_narration,
+    					mFile.getPath()), Toast.LENGTH_LONG).show();
+    		} else {
+    			Toast.makeText(MainActivity.this, R.string.export_failed, Toast.LENGTH_SHORT)
+    					.show();
+    		}
+    	}
+    	
+    	@Override
+    	protected void onCancelled() {
+    		if (mExportTask == this) {
+    			mExportTask = null;
+    		}
+    	}
+    }
+}
@@ -1,22 +1,61 @@
 package com.jamie.picturestory;
 
 /**
-* Reduces typing when using System.currentTimeMillis() to time operations.
-* v1.2
+* Reduces typing when timing operations in milliseconds. Runs on System.nanoTime() so the
+* time is monotonic and isn't thrown off by changes to the wall clock. Time spent paused isn't
+* counted, and an offset can be added to line the time up with another clock.
+* v1.3
 * Jamie Hewland
 * 2012
 */
 public class MilliTimer {
+	private static final long NANOS_PER_MILLI = 1000000L;
+
 	private long startTime;
-	
+	private long pausedAt;
+	private boolean paused;
+	private long offset;
+
 	MilliTimer() {
 		restart();
 	}
 	public void restart() {
-		startTime = System.currentTimeMillis();
+		startTime = System.nanoTime();
+		paused = false;
+	}
+	/**
+	 * Stop the time from advancing until {@link #resume()} is called.
+	 */
+	public void pause() {
+		if (!paused) {
+			pausedAt = System.nanoTime();
+			paused = true;
+		}
+	}
+	/**
+	 * Carry on from the time when {@link #pause()} was called.
+	 */
+	public void resume() {
+		if (paused) {
+			startTime += System.nanoTime() - pausedAt;
+			paused = false;
+		}
+	}
+	public boolean isPaused() {
+		return paused;
+	}
+	/**
+	 * @param offsetMillis Added to every time reported, may be negative
+	 */
+	public void setOffset(long offsetMillis) {
+		offset = offsetMillis;
+	}
+	public long getOffset() {
+		return offset;
 	}
 	public long getTime() {
-		return (System.currentTimeMillis() - startTime);
+		final long now = paused ? pausedAt : System.nanoTime();
+		return (now - startTime) / NANOS_PER_MILLI + offset;
 	}
 	public String toString() {
 		return "" + getTime();
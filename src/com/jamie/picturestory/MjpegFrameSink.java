@@ -0,0 +1,102 @@
+package com.jamie.picturestory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Writes the frames of a {@link SlideshowExporter} to a Motion JPEG AVI file. Each page is drawn
+ * centred on a black frame of a fixed size, scaled to fit with its aspect ratio kept, and
+ * compressed once; the rest of the frames that show it are written as repeats. The narration, if
+ * there is one, is interleaved with the frames by the writer.
+ */
+public class MjpegFrameSink implements SlideshowExporter.FrameSink<Bitmap> {
+    private final AviMjpegWriter mWriter;
+    private final int mQuality;
+    private final Bitmap mFrame;
+    private final Canvas mCanvas;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final Rect mDst = new Rect();
+    private final JpegBuffer mJpeg;
+
+    /**
+     * @param file The file to write the video to
+     * @param width The width of the video, which should be even
+     * @param height The height of the video, which should be even
+     * @param frameRate The frame rate the exporter renders at
+     * @param quality The JPEG quality of each frame, 0-100
+     * @param audio The narration, may be null for a video without sound
+     */
+    public MjpegFrameSink(File file, int width, int height, int frameRate, int quality,
+            AviMjpegWriter.AudioSource audio) throws IOException {
+        mWriter = new AviMjpegWriter(file, width, height, frameRate, audio);
+        mQuality = quality;
+        mFrame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mFrame);
+        mJpeg = new JpegBuffer(width * height / 4);
+    }
+
+    @Override
+    public void writeFrames(Bitmap page, long firstFrame, int frameCount) throws IOException {
+        if (firstFrame != mWriter.getFrameCount()) {
+            throw new IOException("Expected frame " + mWriter.getFrameCount() + " but got "
+                    + firstFrame);
+        }
+
+        // Fit the page inside the frame, letterboxed or pillarboxed as needed
+        final int width = mFrame.getWidth();
+        final int height = mFrame.getHeight();
+        final float scale = Math.min(
+                (float) width / page.getWidth(), (float) height / page.getHeight());
+        final int pageWidth = Math.round(page.getWidth() * scale);
+        final int pageHeight = Math.round(page.getHeight() * scale);
+        final int left = (width - pageWidth) / 2;
+        final int top = (height - pageHeight) / 2;
+        mDst.set(left, top, left + pageWidth, top + pageHeight);
+
+        mCanvas.drawColor(Color.BLACK);
+        mCanvas.drawBitmap(page, null, mDst, mPaint);
+
+        mJpeg.reset();
+        if (!mFrame.compress(Bitmap.CompressFormat.JPEG, mQuality, mJpeg)) {
+            throw new IOException("Unable to compress frame " + firstFrame);
+        }
+        mWriter.writeFrame(mJpeg.getBuffer(), 0, mJpeg.size());
+        mWriter.repeatFrame(frameCount - 1);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        close();
+    }
+
+    /**
+     * Close the file and free the frame. Safe to call more than once, and after a failed export.
+     */
+    public void close() throws IOException {
+        try {
+            mWriter.close();
+        } finally {
+            mFrame.recycle();
+        }
+    }
+
+    /**
+     * Exposes its buffer so that each frame can be written without copying it.
+     */
+    private static class JpegBuffer extends ByteArrayOutputStream {
+        JpegBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
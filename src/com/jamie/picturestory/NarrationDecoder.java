@@ -0,0 +1,209 @@
+package com.jamie.picturestory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decodes a recorded narration (AMR in a 3GP file, as MediaRecorder writes it) to PCM for an
+ * {@link AviMjpegWriter}, a buffer at a time as the video is written, so the whole narration is
+ * never held in memory. The decoder's output is in the device's byte order, which is little endian
+ * on every device Android runs on, as the AVI file needs.
+ *
+ * This uses {@link MediaCodec}, so only works on Jelly Bean and later; check
+ * {@link #isSupported()} first.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class NarrationDecoder implements AviMjpegWriter.AudioSource, Closeable {
+    private static final String TAG = "NarrationDecoder";
+
+    // How long to wait for a codec buffer before going round again
+    private static final long TIMEOUT_US = 10000;
+
+    private final MediaExtractor mExtractor;
+    private final MediaCodec mCodec;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final long mDuration;
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    // The output buffer being read from, and its index, or null and -1
+    private ByteBuffer mOutput;
+    private int mOutputIndex = -1;
+    private boolean mInputDone = false;
+    private boolean mOutputDone = false;
+
+    /**
+     * @return Whether narrations can be decoded on this device
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Open a narration and start its decoder.
+     *
+     * @param path The narration file
+     * @throws IOException If the file can't be read or has no audio that can be decoded
+     */
+    public NarrationDecoder(String path) throws IOException {
+        mExtractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            mExtractor.setDataSource(path);
+            final int track = findAudioTrack(mExtractor);
+            if (track < 0) {
+                throw new IOException("No audio in " + path);
+            }
+            final MediaFormat format = mExtractor.getTrackFormat(track);
+            mExtractor.selectTrack(track);
+            mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            mDuration = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION) / 1000 : 0;
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            mInputBuffers = codec.getInputBuffers();
+            mOutputBuffers = codec.getOutputBuffers();
+        } catch (final IOException e) {
+            release(codec);
+            throw e;
+        } catch (final RuntimeException e) {
+            // The codec methods report failures as runtime exceptions
+            release(codec);
+            throw new IOException("Unable to decode " + path + ": " + e.getMessage());
+        }
+        mCodec = codec;
+    }
+
+    private static int findAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void release(MediaCodec codec) {
+        if (codec != null) {
+            codec.release();
+        }
+        mExtractor.release();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return The length of the narration in milliseconds, or 0 if the file doesn't say
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            while (mOutput == null || !mOutput.hasRemaining()) {
+                if (mOutputIndex >= 0) {
+                    mCodec.releaseOutputBuffer(mOutputIndex, false);
+                    mOutputIndex = -1;
+                    mOutput = null;
+                }
+                if (mOutputDone) {
+                    return -1;
+                }
+                queueInput();
+                dequeueOutput();
+            }
+        } catch (final IllegalStateException e) {
+            throw new IOException("Error decoding narration: " + e.getMessage());
+        }
+
+        final int count = Math.min(length, mOutput.remaining());
+        mOutput.get(buffer, offset, count);
+        return count;
+    }
+
+    /**
+     * Hand the decoder the next sample from the file, or the end of the stream, if it has a free
+     * input buffer.
+     */
+    private void queueInput() {
+        if (mInputDone) {
+            return;
+        }
+        final int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            return;
+        }
+        final ByteBuffer input = mInputBuffers[index];
+        input.clear();
+        final int size = mExtractor.readSampleData(input, 0);
+        if (size < 0) {
+            mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputDone = true;
+        } else {
+            mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+        }
+    }
+
+    /**
+     * Take the next buffer of decoded audio, if the decoder has one ready.
+     */
+    private void dequeueOutput() throws IOException {
+        final int index = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            // The headers have already been written with the format of the track
+            final MediaFormat format = mCodec.getOutputFormat();
+            if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                    || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannelCount) {
+                throw new IOException("Decoder output doesn't match the narration's format");
+            }
+        } else if (index >= 0) {
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mOutputDone = true;
+            }
+            mOutputIndex = index;
+            mOutput = mOutputBuffers[index];
+            mOutput.limit(mInfo.offset + mInfo.size);
+            mOutput.position(mInfo.offset);
+        }
+    }
+
+    /**
+     * Stop the decoder and close the file.
+     */
+    @Override
+    public void close() {
+        try {
+            mCodec.stop();
+        } catch (final IllegalStateException e) {
+            Log.e(TAG, "Error stopping decoder: " + e.getMessage());
+        }
+        release(mCodec);
+    }
+}
@@ -0,0 +1,182 @@
+package com.jamie.picturestory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Remembers the EXIF orientation of images so their metadata only has to be parsed once. The
+ * orientations are kept in a small LRU map and, if given a file, appended to it as they are learnt
+ * so they survive the app being restarted. The file is read back when the cache is created and
+ * rewritten without the duplicate and evicted lines once it grows to twice the size of the map.
+ *
+ * Images should be keyed by an identity that changes when the image does, such as the one resolved
+ * by a {@link CacheKeyStrategy}, so that the orientation of an edited image is read again.
+ */
+public class OrientationCache {
+    private static final String TAG = "OrientationCache";
+    private static final int DEFAULT_MAX_ENTRIES = 512;
+
+    private final File mFile;
+    private final int mMaxEntries;
+    private int mFileLines = 0;
+
+    // Guarded by this
+    private final Map<String, Integer> mOrientations;
+
+    /**
+     * Create a cache, loading any orientations previously written to file.
+     *
+     * @param file The file to persist orientations to, or null to only keep them in memory
+     */
+    public OrientationCache(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param file The file to persist orientations to, or null to only keep them in memory
+     * @param maxEntries The maximum number of orientations to remember
+     */
+    public OrientationCache(File file, final int maxEntries) {
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mOrientations = new LinkedHashMap<String, Integer>(32, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        load();
+    }
+
+    /**
+     * @param key The image the orientation belongs to
+     * @return The orientation in degrees, or null if it isn't known
+     */
+    public synchronized Integer get(String key) {
+        return mOrientations.get(key);
+    }
+
+    /**
+     * Remember the orientation of an image.
+     *
+     * @param key The image the orientation belongs to
+     * @param orientation The orientation in degrees
+     */
+    public synchronized void put(String key, int orientation) {
+        final Integer previous = mOrientations.put(key, orientation);
+        if (mFile == null || (previous != null && previous.intValue() == orientation)) {
+            return;
+        }
+
+        if (mFileLines >= mMaxEntries * 2) {
+            rewrite();
+        } else {
+            append(key, orientation);
+        }
+    }
+
+    /**
+     * Forget all orientations and delete the file.
+     */
+    public synchronized void clear() {
+        mOrientations.clear();
+        if (mFile != null) {
+            mFile.delete();
+            mFileLines = 0;
+        }
+    }
+
+    private void load() {
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mFile), Utils.IO_BUFFER_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mFileLines++;
+                final int separator = line.indexOf(' ');
+                if (separator <= 0) {
+                    continue;
+                }
+                try {
+                    mOrientations.put(line.substring(separator + 1),
+                            Integer.parseInt(line.substring(0, separator)));
+                } catch (final NumberFormatException e) {
+                    // Skip the corrupt line
+                }
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "load - read " + mOrientations.size() + " orientations");
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in load: " + e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void append(String key, int orientation) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(mFile, true));
+            writeLine(writer, key, orientation);
+            mFileLines++;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in append: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void rewrite() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp), Utils.IO_BUFFER_SIZE);
+            for (Map.Entry<String, Integer> entry : mOrientations.entrySet()) {
+                writeLine(writer, entry.getKey(), entry.getValue());
+            }
+            writer.close();
+            writer = null;
+            if (tmp.renameTo(mFile)) {
+                mFileLines = mOrientations.size();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in rewrite: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void writeLine(Writer writer, String key, int orientation) throws IOException {
+        writer.write(Integer.toString(orientation));
+        writer.write(' ');
+        writer.write(key);
+        writer.write('\n');
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.jamie.picturestory;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * Loads story pages for a {@link SlideshowExporter} through an {@link ImageWorker}, so pages come
+ * from the image caches when they can and are decoded at the worker's size when they can't. Each
+ * page stays retained in the cache until the exporter has written it.
+ */
+public class PageFrameSource implements SlideshowExporter.FrameSource<Bitmap> {
+    private final ImageWorker mImageWorker;
+    private final List<Uri> mPageUris;
+
+    /**
+     * @param imageWorker The worker to load pages with
+     * @param pageUris The page image Uris, as returned by {@link ListPagerAdapter#getPageUris()}
+     */
+    public PageFrameSource(ImageWorker imageWorker, List<Uri> pageUris) {
+        mImageWorker = imageWorker;
+        mPageUris = pageUris;
+    }
+
+    @Override
+    public Bitmap loadPage(int position) throws IOException {
+        if (position < 0 || position >= mPageUris.size()) {
+            throw new IOException("No page at position " + position);
+        }
+        final Bitmap bitmap = mImageWorker.getBitmapSynchronous(mPageUris.get(position));
+        if (bitmap == null) {
+            throw new IOException("Unable to load page " + mPageUris.get(position));
+        }
+        return bitmap;
+    }
+
+    @Override
+    public void releasePage(Bitmap page) {
+        final ImageCache imageCache = mImageWorker.getImageCache();
+        if (imageCache != null) {
+            imageCache.releaseBitmap(page);
+        }
+    }
+}
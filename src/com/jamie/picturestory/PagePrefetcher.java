@@ -0,0 +1,124 @@
+package com.jamie.picturestory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.net.Uri;
+
+/**
+ * Decides which pages to load ahead of time so that swiping onto them doesn't show a blank page
+ * while the image is decoded. While browsing, pages in the direction the user is swiping are
+ * weighted above pages behind them. During playback the recorded transitions say exactly which
+ * pages come next, so those are loaded instead.
+ *
+ * Pages within the ViewPager's offscreen limit are skipped as the pager loads those itself.
+ * Prefetches for pages that drop out of the window are cancelled.
+ */
+public class PagePrefetcher {
+    private static final int DEFAULT_PAGES_AHEAD = 2;
+    private static final int DEFAULT_PAGES_BEHIND = 1;
+
+    // Being one page further away in the direction of travel costs this much priority, and pages
+    // behind cost BEHIND_WEIGHT times as much as pages ahead
+    private static final int DISTANCE_WEIGHT = 1;
+    private static final int BEHIND_WEIGHT = 2;
+
+    private final ImageWorker mImageWorker;
+    private final int mOffscreenLimit;
+    private int mPagesAhead = DEFAULT_PAGES_AHEAD;
+    private int mPagesBehind = DEFAULT_PAGES_BEHIND;
+
+    private int mLastPosition = -1;
+    private int mDirection = 1;
+
+    /**
+     * @param imageWorker The worker to prefetch with
+     * @param offscreenLimit The number of pages either side of the current one that the ViewPager
+     *            already keeps loaded
+     */
+    public PagePrefetcher(ImageWorker imageWorker, int offscreenLimit) {
+        mImageWorker = imageWorker;
+        mOffscreenLimit = offscreenLimit;
+    }
+
+    /**
+     * Set how many pages beyond the offscreen limit to prefetch.
+     *
+     * @param pagesAhead Pages in the direction the user is swiping (or upcoming during playback)
+     * @param pagesBehind Pages in the other direction
+     */
+    public void setPageCounts(int pagesAhead, int pagesBehind) {
+        mPagesAhead = pagesAhead;
+        mPagesBehind = pagesBehind;
+    }
+
+    /**
+     * Prefetch the pages around the one that was just selected.
+     *
+     * @param pages The page image Uris
+     * @param position The selected page
+     */
+    public void onPageSelected(List<Uri> pages, int position) {
+        if (mLastPosition >= 0 && position != mLastPosition) {
+            mDirection = position > mLastPosition ? 1 : -1;
+        }
+        mLastPosition = position;
+
+        final List<Uri> prefetchUris = new ArrayList<Uri>();
+        final List<Integer> priorities = new ArrayList<Integer>();
+        for (int i = 1; i <= mPagesAhead; i++) {
+            final int page = position + mDirection * (mOffscreenLimit + i);
+            if (page >= 0 && page < pages.size()) {
+                prefetchUris.add(pages.get(page));
+                priorities.add(-i * DISTANCE_WEIGHT);
+            }
+        }
+        for (int i = 1; i <= mPagesBehind; i++) {
+            final int page = position - mDirection * (mOffscreenLimit + i);
+            if (page >= 0 && page < pages.size()) {
+                prefetchUris.add(pages.get(page));
+                priorities.add(-i * DISTANCE_WEIGHT * BEHIND_WEIGHT);
+            }
+        }
+        prefetch(prefetchUris, priorities);
+    }
+
+    /**
+     * Prefetch the pages that the next transitions of a playing story will move to.
+     *
+     * @param pages The page image Uris
+     * @param timeline The recorded transitions
+     * @param nextIndex The index of the next transition that will fire
+     */
+    public void onPlaybackProgress(List<Uri> pages, StoryTimeline timeline, int nextIndex) {
+        final List<Uri> prefetchUris = new ArrayList<Uri>();
+        final List<Integer> priorities = new ArrayList<Integer>();
+        for (int i = nextIndex; i < timeline.size() && prefetchUris.size() < mPagesAhead; i++) {
+            final int page = timeline.getPosition(i);
+            if (page >= 0 && page < pages.size() && !prefetchUris.contains(pages.get(page))) {
+                prefetchUris.add(pages.get(page));
+                priorities.add(-(prefetchUris.size()) * DISTANCE_WEIGHT);
+            }
+        }
+        prefetch(prefetchUris, priorities);
+    }
+
+    /**
+     * Cancel all outstanding prefetches.
+     */
+    public void cancelAll() {
+        mImageWorker.cancelPrefetchesExcept(new ArrayList<String>());
+    }
+
+    private void prefetch(List<Uri> uris, List<Integer> priorities) {
+        final List<String> keys = new ArrayList<String>(uris.size());
+        for (Uri uri : uris) {
+            keys.add(mImageWorker.getCacheKey(uri));
+        }
+        mImageWorker.cancelPrefetchesExcept(keys);
+
+        for (int i = 0; i < uris.size(); i++) {
+            mImageWorker.prefetch(uris.get(i), priorities.get(i));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.jamie.picturestory;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Stores bitmaps as their raw pixels so that reading one back is a copy rather than a decode, and
+ * there is no loss in quality from compressing it again every time it is cached. The pixels can
+ * optionally be deflated at the fastest level, which costs a little time on each read but takes a
+ * lot less disk space for images with large flat areas.
+ *
+ * Each file starts with a fixed size header:
+ * <pre>
+ * int   magic ('PSRB')
+ * byte  version
+ * byte  config (ordinal of {@link Bitmap.Config})
+ * byte  flags (FLAG_DEFLATED)
+ * byte  unused
+ * int   width
+ * int   height
+ * short orientation (clockwise degrees the pixels still need rotating by)
+ * short unused
+ * int   payload length
+ * </pre>
+ * followed by the payload, which is the pixels exactly as {@link Bitmap#copyPixelsToBuffer} writes
+ * them, deflated if the flag is set.
+ */
+public class RawBitmapFormat {
+    private static final String TAG = "RawBitmapFormat";
+
+    private static final int MAGIC = 0x50535242; // 'PSRB'
+    private static final byte VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+
+    /** The size of the header in bytes */
+    public static final int HEADER_SIZE = 24;
+
+    private static final int DEFLATE_CHUNK_SIZE = 64 * 1024;
+
+    private RawBitmapFormat() {}
+
+    /**
+     * @param bitmap The bitmap to encode
+     * @return true if bitmap can be stored in this format
+     */
+    public static boolean canEncode(Bitmap bitmap) {
+        return bitmap.getConfig() != null;
+    }
+
+    /**
+     * Encode a bitmap into a buffer holding the header and the pixels.
+     *
+     * @param bitmap The bitmap to encode, which must pass {@link #canEncode(Bitmap)}
+     * @param orientation The rotation in degrees still to be applied to the pixels
+     * @param deflate Whether to deflate the pixels
+     * @return A buffer positioned at 0 with its limit at the end of the data
+     */
+    public static ByteBuffer encode(Bitmap bitmap, int orientation, boolean deflate) {
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(pixels);
+
+        byte[] payload = pixels.array();
+        int payloadLength = pixels.position();
+        if (deflate) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload, 0, payloadLength);
+                deflater.finish();
+                byte[] deflated = new byte[Math.max(DEFLATE_CHUNK_SIZE, payloadLength / 2)];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == deflated.length) {
+                        final byte[] larger = new byte[deflated.length * 2];
+                        System.arraycopy(deflated, 0, larger, 0, length);
+                        deflated = larger;
+                    }
+                    length += deflater.deflate(deflated, length, deflated.length - length);
+                }
+                payload = deflated;
+                payloadLength = length;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) bitmap.getConfig().ordinal());
+        buffer.put((byte) (deflate ? FLAG_DEFLATED : 0));
+        buffer.put((byte) 0);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putShort((short) orientation);
+        buffer.putShort((short) 0);
+        buffer.putInt(payloadLength);
+        buffer.put(payload, 0, payloadLength);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param header At least the first 4 bytes of a file, from its current position
+     * @return true if the data is in this format
+     */
+    public static boolean isRawBitmap(ByteBuffer header) {
+        return header.remaining() >= 4 && header.getInt(header.position()) == MAGIC;
+    }
+
+    /**
+     * Decode a bitmap written by {@link #encode(Bitmap, int, boolean)}. The pixels are copied into
+     * a bitmap from the pool if there is one of the right size, and the result is always mutable.
+     *
+     * @param buffer The encoded data, from its current position
+     * @param pool The pool of bitmaps to reuse, may be null
+     * @return The bitmap, or null if the data is not valid
+     */
+    public static Bitmap decode(ByteBuffer buffer, BitmapPool pool) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                || buffer.get() != VERSION) {
+            return null;
+        }
+
+        final int configOrdinal = buffer.get();
+        final int flags = buffer.get();
+        buffer.get();
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+        final int orientation = buffer.getShort();
+        buffer.getShort();
+        final int payloadLength = buffer.getInt();
+
+        final Bitmap.Config[] configs = Bitmap.Config.values();
+        if (configOrdinal < 0 || configOrdinal >= configs.length || width <= 0 || height <= 0
+                || payloadLength < 0 || payloadLength > buffer.remaining()) {
+            return null;
+        }
+        final Bitmap.Config config = configs[configOrdinal];
+
+        final long pixelBytes = DecodeBudget.estimateBytes(width, height, 1, config);
+        ByteBuffer pixels = buffer.slice();
+        pixels.limit(payloadLength);
+        if ((flags & FLAG_DEFLATED) != 0) {
+            pixels = inflate(pixels, (int) pixelBytes);
+        }
+        if (pixels == null || pixels.remaining() < pixelBytes) {
+            Log.e(TAG, "decode - payload too short for " + width + "x" + height);
+            return null;
+        }
+
+        Bitmap bitmap = pool != null ? pool.get(width, height, config) : null;
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+
+        return orientation != 0 ? ImageResizer.rotateBitmap(bitmap, orientation, pool) : bitmap;
+    }
+
+    /**
+     * Inflate a payload whose inflated size is known.
+     *
+     * @return The inflated data, or null if it is corrupt or too short
+     */
+    private static ByteBuffer inflate(ByteBuffer deflated, int inflatedSize) {
+        final byte[] input = new byte[deflated.remaining()];
+        deflated.get(input);
+
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            final byte[] output = new byte[inflatedSize];
+            int length = 0;
+            while (length < output.length && !inflater.finished()) {
+                final int count = inflater.inflate(output, length, output.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null; // Truncated
+                }
+                length += count;
+            }
+            return ByteBuffer.wrap(output, 0, length);
+        } catch (final DataFormatException e) {
+            Log.e(TAG, "Error in inflate: " + e.getMessage());
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.jamie.picturestory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Renders a recorded story as a sequence of video frames. The story timeline is cut into segments,
+ * one for each run of frames that show the same page, and each page is only loaded and handed to
+ * the sink once along with the number of frames it lasts for, so a sink that encodes can write a
+ * page once however long it is shown. {@link MjpegFrameSink} writes the frames to a video file.
+ *
+ * Loading and writing are pipelined: pages are loaded on a separate thread up to PIPELINE_DEPTH
+ * pages ahead, so loading the next page overlaps with writing the current one.
+ *
+ * Nothing here depends on Android, the frame type is whatever the source produces, so a source
+ * that produces plain objects together with a sink that just records what it is given describes
+ * the frames a story renders to deterministically, and can be checked without a device.
+ *
+ * @param <F> The type of a loaded page
+ */
+public class SlideshowExporter<F> {
+    // The number of loaded pages that may be waiting to be written
+    private static final int PIPELINE_DEPTH = 1;
+
+    // How long the last page is shown when nothing says when the story ends, as happens when a
+    // recording has no end marker and there's no narration to go by
+    static final long DEFAULT_LAST_PAGE_TIME = 3000;
+
+    /**
+     * Loads the pages of a story, on the exporter's loader thread.
+     */
+    public interface FrameSource<F> {
+        /**
+         * @param position The page to load
+         * @return The page, must not be null
+         */
+        F loadPage(int position) throws IOException;
+
+        /**
+         * Called once a page returned by {@link #loadPage(int)} is no longer needed.
+         */
+        void releasePage(F page);
+    }
+
+    /**
+     * Receives the frames of a story, in order, on the thread that called
+     * {@link SlideshowExporter#export(FrameSource, FrameSink)}.
+     */
+    public interface FrameSink<F> {
+        /**
+         * @param page The page to show
+         * @param firstFrame The index of the first frame that shows the page
+         * @param frameCount The number of consecutive frames that show the page
+         */
+        void writeFrames(F page, long firstFrame, int frameCount) throws IOException;
+
+        /**
+         * Called after the last frame has been written.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * A run of frames showing one page.
+     */
+    public static class Segment {
+        public final int position;
+        public final long firstFrame;
+        public final int frameCount;
+
+        Segment(int position, long firstFrame, int frameCount) {
+            this.position = position;
+            this.firstFrame = firstFrame;
+            this.frameCount = frameCount;
+        }
+    }
+
+    private final int mFrameRate;
+    private final List<Segment> mSegments;
+    private final long mFrameCount;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param timeline The recorded transitions
+     * @param frameRate The number of frames per second to render
+     */
+    public SlideshowExporter(StoryTimeline timeline, int frameRate) {
+        this(timeline, frameRate, 0);
+    }
+
+    /**
+     * @param timeline The recorded transitions
+     * @param frameRate The number of frames per second to render
+     * @param minEndTime The earliest time in milliseconds the video may end, such as the length of
+     *            the narration, or 0 to end with the story
+     */
+    public SlideshowExporter(StoryTimeline timeline, int frameRate, long minEndTime) {
+        mFrameRate = frameRate;
+        mSegments = new ArrayList<Segment>(timeline.size());
+
+        long endTime = Math.max(timeline.getEndTime(), minEndTime);
+        if (timeline.size() > 0 && endTime <= timeline.getTime(timeline.size() - 1)) {
+            // Without this the last page would get no frames at all
+            endTime = timeline.getTime(timeline.size() - 1) + DEFAULT_LAST_PAGE_TIME;
+        }
+
+        long frame = 0;
+        for (int i = 0; i < timeline.size(); i++) {
+            final long end = i + 1 < timeline.size() ? timeline.getTime(i + 1) : endTime;
+            final long endFrame = getFrameAt(end);
+            final int count = (int) (endFrame - frame);
+            if (count <= 0) {
+                continue; // Shown for less than a frame
+            }
+
+            final int position = timeline.getPosition(i);
+            final int last = mSegments.size() - 1;
+            if (last >= 0 && mSegments.get(last).position == position) {
+                // Moving to the page that's already showing doesn't change any frames
+                final Segment previous = mSegments.get(last);
+                mSegments.set(last, new Segment(
+                        position, previous.firstFrame, previous.frameCount + count));
+            } else {
+                mSegments.add(new Segment(position, frame, count));
+            }
+            frame = endFrame;
+        }
+        mFrameCount = frame;
+    }
+
+    /**
+     * @return The runs of frames that the story renders to, in order
+     */
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * @return The total number of frames in the video
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The frame rate the story is rendered at
+     */
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @param time A time in milliseconds
+     * @return The index of the frame showing at time
+     */
+    public long getFrameAt(long time) {
+        return (time * mFrameRate + 500) / 1000;
+    }
+
+    /**
+     * Stop an export that is in progress, which then throws an InterruptedException.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Render the story, blocking until every frame has been written to the sink.
+     *
+     * @param source Loads the pages
+     * @param sink Receives the frames
+     * @throws IOException If a page couldn't be loaded or written
+     * @throws InterruptedException If the export was cancelled or the thread interrupted
+     */
+    public void export(final FrameSource<F> source, FrameSink<F> sink)
+            throws IOException, InterruptedException {
+        final BlockingQueue<LoadedPage<F>> queue =
+                new ArrayBlockingQueue<LoadedPage<F>>(PIPELINE_DEPTH);
+        final Loader loader = new Loader(source, queue);
+        loader.start();
+
+        try {
+            while (true) {
+                final LoadedPage<F> loaded = queue.take();
+                if (mCancelled) {
+                    if (loaded.page != null) {
+                        source.releasePage(loaded.page);
+                    }
+                    throw new InterruptedException("Export cancelled");
+                }
+                if (loaded.segment == null) {
+                    if (loaded.error != null) {
+                        throw loaded.error;
+                    }
+                    break; // Done
+                }
+                try {
+                    sink.writeFrames(loaded.page, loaded.segment.firstFrame,
+                            loaded.segment.frameCount);
+                } finally {
+                    source.releasePage(loaded.page);
+                }
+            }
+            sink.finish();
+        } finally {
+            loader.interrupt();
+            loader.join();
+            // Release anything loaded ahead of a failure
+            LoadedPage<F> loaded;
+            while ((loaded = queue.poll()) != null) {
+                if (loaded.page != null) {
+                    source.releasePage(loaded.page);
+                }
+            }
+        }
+    }
+
+    private static class LoadedPage<F> {
+        final Segment segment;
+        final F page;
+        final IOException error;
+
+        LoadedPage(Segment segment, F page, IOException error) {
+            this.segment = segment;
+            this.page = page;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Loads the page for each segment in turn, blocking once PIPELINE_DEPTH pages are waiting. A
+     * LoadedPage without a segment marks the end, carrying the error if loading failed.
+     */
+    private class Loader extends Thread {
+        private final FrameSource<F> mSource;
+        private final BlockingQueue<LoadedPage<F>> mQueue;
+
+        Loader(FrameSource<F> source, BlockingQueue<LoadedPage<F>> queue) {
+            super("SlideshowExporter loader");
+            mSource = source;
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            IOException error = null;
+            try {
+                for (Segment segment : mSegments) {
+                    if (mCancelled) {
+                        break;
+                    }
+                    final F page = mSource.loadPage(segment.position);
+                    try {
+                        mQueue.put(new LoadedPage<F>(segment, page, null));
+                    } catch (final InterruptedException e) {
+                        mSource.releasePage(page);
+                        return; // The writer has given up
+                    }
+                }
+            } catch (final IOException e) {
+                error = e;
+            }
+            try {
+                mQueue.put(new LoadedPage<F>(null, null, error));
+            } catch (final InterruptedException e) {
+                // The writer has given up
+            }
+        }
+    }
+}
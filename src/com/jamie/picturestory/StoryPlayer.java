@@ -0,0 +1,115 @@
+package com.jamie.picturestory;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Plays back recorded page transitions in time with the story's audio. Rather than posting every
+ * transition up front relative to when playback started, a single tick reads the audio position,
+ * fires whichever transition is due and schedules itself again just in time for the next one. Each
+ * tick corrects for any drift between the main thread and the audio, and the wait before a tick is
+ * capped so that a transition is never fired more than a tick late if the audio speeds up.
+ *
+ * Playing can start from any point in the timeline, the transition in effect at that point is
+ * fired first.
+ */
+public class StoryPlayer {
+    // The longest to wait before reading the clock again
+    private static final long MAX_TICK_INTERVAL = 250;
+
+    /**
+     * The clock transitions are timed against, usually the position of the audio.
+     */
+    public interface Clock {
+        /**
+         * @return The playback position in milliseconds
+         */
+        long getTime();
+    }
+
+    /**
+     * Receives the transitions as they become due, on the thread the player was created on.
+     */
+    public interface Listener {
+        /**
+         * @param position The page to move to
+         * @param nextIndex The index of the next transition that will fire
+         */
+        void onTransition(int position, int nextIndex);
+    }
+
+    private final StoryTimeline mTimeline;
+    private final Clock mClock;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+
+    // The index of the next transition to fire
+    private int mNextIndex;
+    private boolean mPlaying = false;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * @param timeline The recorded transitions
+     * @param clock The clock to time the transitions against
+     * @param listener Receives the transitions
+     */
+    public StoryPlayer(StoryTimeline timeline, Clock clock, Listener listener) {
+        mTimeline = timeline;
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /**
+     * Start firing transitions from the clock's current time. The transition for the current time
+     * (normally the first page) is fired straight away.
+     */
+    public void start() {
+        stop();
+        mPlaying = true;
+        mNextIndex = Math.max(0, mTimeline.indexAt(mClock.getTime()));
+        tick();
+    }
+
+    /**
+     * Stop firing transitions.
+     */
+    public void stop() {
+        mPlaying = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    /**
+     * @return Whether transitions are being fired
+     */
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    private void tick() {
+        if (!mPlaying) {
+            return;
+        }
+
+        final long now = mClock.getTime();
+        final int dueIndex = mTimeline.indexAt(now);
+        if (dueIndex >= mNextIndex) {
+            // Only the latest due transition matters if more than one has come due since the last
+            // tick, flipping through the pages in between would just waste the frame
+            mNextIndex = dueIndex + 1;
+            mListener.onTransition(mTimeline.getPosition(dueIndex), mNextIndex);
+        }
+
+        if (mNextIndex >= mTimeline.size()) {
+            mPlaying = false; // Nothing left to fire
+            return;
+        }
+        final long delay = Math.min(mTimeline.getTime(mNextIndex) - now, MAX_TICK_INTERVAL);
+        mHandler.postAtTime(mTick, SystemClock.uptimeMillis() + Math.max(0, delay));
+    }
+}
@@ -0,0 +1,338 @@
+package com.jamie.picturestory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A story saved to a compact binary file: the page Uris, the path of the audio and the recorded
+ * transitions. The file is a header followed by a sequence of records, so it can be written a
+ * record at a time while a story is being recorded and read back in a single pass. A record that
+ * was only partly written when the app died is ignored, along with anything after it.
+ *
+ * The header is the int MAGIC and a version byte. Each record is a type byte followed by:
+ * <ul>
+ * <li>RECORD_AUDIO - the audio file path as a string.
+ * <li>RECORD_PAGES - a varint count and then that many page Uris as strings. Replaces the pages
+ * from any earlier record.
+ * <li>RECORD_RECORDING - nothing. Starts a new recording, clearing any earlier transitions.
+ * <li>RECORD_TRANSITION - the time since the previous transition in the recording and the page
+ * position, both as zigzag varints.
+ * </ul>
+ * Strings are a varint byte length followed by UTF-8. Varints are little endian base 128, so a
+ * transition a few seconds after the last one takes four bytes.
+ */
+public class StoryProject {
+    private static final String TAG = "StoryProject";
+
+    private static final int MAGIC = 0x5053504A; // 'PSPJ'
+    private static final int VERSION = 1;
+
+    private static final int RECORD_AUDIO = 1;
+    private static final int RECORD_PAGES = 2;
+    private static final int RECORD_RECORDING = 3;
+    private static final int RECORD_TRANSITION = 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final ArrayList<Uri> mPageUris;
+    private final String mAudioFilePath;
+    private final ArrayList<StoryTransition> mTransitions;
+
+    private StoryProject(ArrayList<Uri> pageUris, String audioFilePath,
+            ArrayList<StoryTransition> transitions) {
+        mPageUris = pageUris;
+        mAudioFilePath = audioFilePath;
+        mTransitions = transitions;
+    }
+
+    /**
+     * @return The page Uris, in order
+     */
+    public ArrayList<Uri> getPageUris() {
+        return mPageUris;
+    }
+
+    /**
+     * @return The path of the story's audio, or null if none was saved
+     */
+    public String getAudioFilePath() {
+        return mAudioFilePath;
+    }
+
+    /**
+     * @return The transitions of the last recording, or null if nothing was recorded
+     */
+    public ArrayList<StoryTransition> getTransitions() {
+        return mTransitions;
+    }
+
+    /**
+     * Read a story from a file.
+     *
+     * @param file The file to read
+     * @return The story
+     * @throws IOException If the file can't be read or isn't a story
+     */
+    public static StoryProject load(File file) throws IOException {
+        final InputStream in =
+                new BufferedInputStream(new FileInputStream(file), Utils.IO_BUFFER_SIZE);
+        try {
+            if (readInt(in) != MAGIC) {
+                throw new IOException("Not a story project: " + file);
+            }
+            final int version = readByte(in);
+            if (version > VERSION) {
+                throw new IOException("Unsupported story project version " + version);
+            }
+
+            ArrayList<Uri> pageUris = new ArrayList<Uri>();
+            String audioFilePath = null;
+            ArrayList<StoryTransition> transitions = null;
+            long lastTime = 0;
+            try {
+                int type;
+                while ((type = in.read()) >= 0) {
+                    switch (type) {
+                    case RECORD_AUDIO:
+                        audioFilePath = readString(in);
+                        break;
+                    case RECORD_PAGES:
+                        final int count = (int) readVarint(in);
+                        final ArrayList<Uri> pages = new ArrayList<Uri>(Math.min(count, 1024));
+                        for (int i = 0; i < count; i++) {
+                            pages.add(Uri.parse(readString(in)));
+                        }
+                        pageUris = pages;
+                        break;
+                    case RECORD_RECORDING:
+                        transitions = new ArrayList<StoryTransition>();
+                        lastTime = 0;
+                        break;
+                    case RECORD_TRANSITION:
+                        final long time = lastTime + decodeZigzag(readVarint(in));
+                        final int position = (int) decodeZigzag(readVarint(in));
+                        if (transitions == null) {
+                            throw new IOException("Transition outside of a recording");
+                        }
+                        transitions.add(new StoryTransition(position, time));
+                        lastTime = time;
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                    }
+                }
+            } catch (final EOFException e) {
+                Log.e(TAG, "load - ignoring truncated record at the end of " + file);
+            }
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "load - read " + pageUris.size() + " pages and "
+                        + (transitions != null ? transitions.size() : 0) + " transitions");
+            }
+            return new StoryProject(pageUris, audioFilePath, transitions);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a whole story to a file, replacing it only once the new one has been written.
+     *
+     * @param file The file to write
+     * @param pageUris The page Uris
+     * @param audioFilePath The path of the story's audio, may be null
+     * @param transitions The recorded transitions, may be null
+     */
+    public static void save(File file, List<Uri> pageUris, String audioFilePath,
+            List<StoryTransition> transitions) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        // Only flushed when closed, a partly written file never replaces the old one anyway
+        final Writer writer = new Writer(tmp, false);
+        try {
+            if (audioFilePath != null) {
+                writer.writeAudioFilePath(audioFilePath);
+            }
+            writer.writePageUris(pageUris);
+            if (transitions != null) {
+                writer.beginRecording();
+                for (StoryTransition transition : transitions) {
+                    writer.writeTransition(transition);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Writes a story a record at a time. Each record is flushed to the file as soon as it has been
+     * written, so transitions written during a recording survive the app being killed.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream mOut;
+        private final boolean mFlushRecords;
+        private long mLastTime;
+        private boolean mRecording = false;
+
+        /**
+         * Start a new story file, replacing any existing one.
+         *
+         * @param file The file to write
+         */
+        public Writer(File file) throws IOException {
+            this(file, true);
+        }
+
+        private Writer(File file, boolean flushRecords) throws IOException {
+            mOut = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
+            mFlushRecords = flushRecords;
+            writeInt(mOut, MAGIC);
+            mOut.write(VERSION);
+            endRecord();
+        }
+
+        /**
+         * @param audioFilePath The path of the story's audio
+         */
+        public void writeAudioFilePath(String audioFilePath) throws IOException {
+            mOut.write(RECORD_AUDIO);
+            writeString(mOut, audioFilePath);
+            endRecord();
+        }
+
+        /**
+         * @param pageUris The page Uris, replacing any written before
+         */
+        public void writePageUris(List<Uri> pageUris) throws IOException {
+            mOut.write(RECORD_PAGES);
+            writeVarint(mOut, pageUris.size());
+            for (Uri uri : pageUris) {
+                writeString(mOut, uri.toString());
+            }
+            endRecord();
+        }
+
+        /**
+         * Start a new recording, replacing any transitions written before.
+         */
+        public void beginRecording() throws IOException {
+            mOut.write(RECORD_RECORDING);
+            endRecord();
+            mLastTime = 0;
+            mRecording = true;
+        }
+
+        /**
+         * @param transition The next transition in the recording, which must not be earlier than
+         *            the last one
+         */
+        public void writeTransition(StoryTransition transition) throws IOException {
+            if (!mRecording) {
+                throw new IllegalStateException("beginRecording() must be called first");
+            }
+            mOut.write(RECORD_TRANSITION);
+            writeVarint(mOut, encodeZigzag(transition.getTime() - mLastTime));
+            writeVarint(mOut, encodeZigzag(transition.getPosition()));
+            endRecord();
+            mLastTime = transition.getTime();
+        }
+
+        private void endRecord() throws IOException {
+            if (mFlushRecords) {
+                mOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        return (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long encodeZigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(CHARSET);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        final long length = readVarint(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed string length " + length);
+        }
+        final byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            final int count = in.read(bytes, offset, bytes.length - offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+        return new String(bytes, CHARSET);
+    }
+}
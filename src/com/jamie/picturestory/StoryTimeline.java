@@ -0,0 +1,132 @@
+package com.jamie.picturestory;
+
+import java.util.List;
+
+/**
+ * An immutable index of the page transitions in a recorded story, kept as parallel arrays of
+ * times and positions so that seeking anywhere in a story is a binary search rather than a scan of
+ * the transition list. None of the queries allocate.
+ *
+ * The transition to position -1 that marks the end of a recording isn't part of the timeline, its
+ * time is kept as the end time instead.
+ */
+public class StoryTimeline {
+    private final long[] mTimes;
+    private final int[] mPositions;
+    private final long mEndTime;
+
+    /**
+     * @param times The time of each transition in milliseconds, in ascending order
+     * @param positions The page each transition moves to
+     * @param endTime The time the story ends
+     */
+    public StoryTimeline(long[] times, int[] positions, long endTime) {
+        if (times.length != positions.length) {
+            throw new IllegalArgumentException("Times and positions differ in length");
+        }
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException("Transition " + i + " is out of order");
+            }
+        }
+        mTimes = times.clone();
+        mPositions = positions.clone();
+        mEndTime = Math.max(endTime, times.length > 0 ? times[times.length - 1] : 0);
+    }
+
+    /**
+     * Build a timeline from recorded transitions.
+     *
+     * @param transitions The transitions in the order they were recorded, optionally ending with
+     *            a transition to position -1
+     * @return The timeline
+     */
+    public static StoryTimeline fromTransitions(List<StoryTransition> transitions) {
+        int count = transitions.size();
+        long endTime = 0;
+        if (count > 0 && transitions.get(count - 1).getPosition() < 0) {
+            endTime = transitions.get(--count).getTime();
+        }
+
+        final long[] times = new long[count];
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            final StoryTransition transition = transitions.get(i);
+            times[i] = transition.getTime();
+            positions[i] = transition.getPosition();
+        }
+        return new StoryTimeline(times, positions, endTime);
+    }
+
+    /**
+     * @return The number of transitions
+     */
+    public int size() {
+        return mTimes.length;
+    }
+
+    /**
+     * @return The time of the transition at index
+     */
+    public long getTime(int index) {
+        return mTimes[index];
+    }
+
+    /**
+     * @return The page the transition at index moves to
+     */
+    public int getPosition(int index) {
+        return mPositions[index];
+    }
+
+    /**
+     * @return The time the story ends, which is never before the last transition
+     */
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    /**
+     * Find the transition in effect at a time, for seeking.
+     *
+     * @param time The time in milliseconds
+     * @return The index of the last transition at or before time, or -1 if time is before the
+     *         first one
+     */
+    public int indexAt(long time) {
+        return nextIndexAfter(time) - 1;
+    }
+
+    /**
+     * @param time The time in milliseconds
+     * @return The page showing at time, which is the first page before the first transition, or
+     *         -1 if the timeline is empty
+     */
+    public int pageAt(long time) {
+        if (mPositions.length == 0) {
+            return -1;
+        }
+        return mPositions[Math.max(0, indexAt(time))];
+    }
+
+    /**
+     * Find the next transition after a time.
+     *
+     * @param time The time in milliseconds
+     * @return The index of the first transition later than time, or {@link #size()} if there
+     *         isn't one
+     */
+    public int nextIndexAfter(long time) {
+        int low = 0;
+        int high = mTimes.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
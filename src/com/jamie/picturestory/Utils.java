@@ -130,7 +130,7 @@ public class Utils {
     	
     	// Create a media file name
     	String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-    	String filepath = mediaStorageDir.getPath() + File.separator + "VID_" + timeStamp + ".3gp";
+    	String filepath = mediaStorageDir.getPath() + File.separator + "VID_" + timeStamp + ".avi";
     	
     	return filepath;
     }
@@ -0,0 +1,316 @@
+package com.jamie.picturestory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes short videos of made up frames and audio and walks the RIFF structure of the file to
+ * check that the headers, frame and audio chunks and index all agree.
+ */
+public class AviMjpegWriterTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 15;
+    // 20 samples a frame
+    private static final int SAMPLE_RATE = 300;
+    private static final int SAMPLES_PER_FRAME = SAMPLE_RATE / FRAME_RATE;
+
+    // Odd sized so that chunk padding is covered
+    private static final byte[] FRAME_A = { 1, 2, 3, 4, 5 };
+    private static final byte[] FRAME_B = { 6, 7, 8, 9, 10, 11, 12, 13 };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("AviMjpegWriterTest", ".avi");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testStructure() throws IOException {
+        final AviMjpegWriter writer = new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE);
+        writer.writeFrame(FRAME_A, 0, FRAME_A.length);
+        writer.repeatFrame(2);
+        writer.writeFrame(FRAME_B, 0, FRAME_B.length);
+        writer.repeatFrame(3);
+        assertEquals(7, writer.getFrameCount());
+        writer.close();
+
+        final ByteBuffer file = readFile();
+        final int[] expectedSizes = { 5, 0, 0, 8, 0, 0, 0 };
+
+        assertFourCc(file, 0, "RIFF");
+        assertEquals(file.limit() - 8, file.getInt(4));
+        assertFourCc(file, 8, "AVI ");
+        assertFourCc(file, 12, "LIST");
+        assertFourCc(file, 20, "hdrl");
+
+        // avih
+        assertFourCc(file, 24, "avih");
+        assertEquals(1000000 / FRAME_RATE, file.getInt(32));
+        assertEquals(7, file.getInt(48)); // dwTotalFrames
+        assertEquals(1, file.getInt(56)); // dwStreams
+        assertEquals(WIDTH, file.getInt(64));
+        assertEquals(HEIGHT, file.getInt(68));
+
+        // strh and strf
+        assertFourCc(file, 88, "LIST");
+        assertFourCc(file, 96, "strl");
+        assertFourCc(file, 100, "strh");
+        assertFourCc(file, 108, "vids");
+        assertFourCc(file, 112, "MJPG");
+        assertEquals(FRAME_RATE, file.getInt(132)); // dwRate
+        assertEquals(7, file.getInt(140)); // dwLength
+        assertFourCc(file, 164, "strf");
+        assertEquals(WIDTH, file.getInt(176));
+        assertEquals(HEIGHT, file.getInt(180));
+        assertFourCc(file, 188, "MJPG");
+
+        // The frames
+        assertFourCc(file, 212, "LIST");
+        assertFourCc(file, AviMjpegWriter.MOVI_OFFSET, "movi");
+        final int moviEnd = AviMjpegWriter.MOVI_OFFSET + file.getInt(216);
+        final int[] offsets = new int[expectedSizes.length];
+        int position = AviMjpegWriter.HEADER_SIZE;
+        for (int i = 0; i < expectedSizes.length; i++) {
+            assertFourCc(file, position, "00dc");
+            assertEquals("Size of frame " + i, expectedSizes[i], file.getInt(position + 4));
+            offsets[i] = position;
+            position += 8 + ((expectedSizes[i] + 1) & ~1);
+        }
+        assertEquals(moviEnd, position);
+        assertEquals(FRAME_A[4], file.get(offsets[0] + 8 + 4));
+        assertEquals(FRAME_B[0], file.get(offsets[3] + 8));
+
+        // The index, which points back at the frames
+        assertFourCc(file, position, "idx1");
+        assertEquals(16 * expectedSizes.length, file.getInt(position + 4));
+        position += 8;
+        for (int i = 0; i < expectedSizes.length; i++, position += 16) {
+            assertFourCc(file, position, "00dc");
+            assertEquals(expectedSizes[i] > 0 ? 0x10 : 0, file.getInt(position + 4));
+            assertEquals(offsets[i], AviMjpegWriter.MOVI_OFFSET + file.getInt(position + 8));
+            assertEquals(expectedSizes[i], file.getInt(position + 12));
+        }
+        assertEquals(file.limit(), position);
+    }
+
+    public void testAudio() throws IOException {
+        // Stereo, 7 frames of video and 5.5 frames of audio
+        final PcmSource audio = new PcmSource(2, SAMPLES_PER_FRAME * 11 / 2);
+        final AviMjpegWriter writer =
+                new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE, audio);
+        writer.writeFrame(FRAME_A, 0, FRAME_A.length);
+        writer.repeatFrame(2);
+        writer.writeFrame(FRAME_B, 0, FRAME_B.length);
+        writer.repeatFrame(3);
+        writer.close();
+
+        final ByteBuffer file = readFile();
+        final int frameBytes = SAMPLES_PER_FRAME * 4;
+        final String[] expectedChunks = { "00dc", "01wb", "00dc", "01wb", "00dc", "01wb",
+                "00dc", "01wb", "00dc", "01wb", "00dc", "01wb", "00dc" };
+        final int[] expectedSizes = { 5, frameBytes, 0, frameBytes, 0, frameBytes, 8, frameBytes,
+                0, frameBytes, 0, frameBytes / 2, 0 };
+        assertHeaders(file, audio, expectedSizes.length);
+        assertEquals(SAMPLES_PER_FRAME * 11 / 2, file.getInt(264)); // Audio dwLength
+        assertChunks(file, expectedChunks, expectedSizes, audio);
+    }
+
+    public void testAudioLongerThanVideo() throws IOException {
+        // The audio left after the last frame is written in frame sized chunks
+        final PcmSource audio = new PcmSource(1, SAMPLES_PER_FRAME * 3);
+        final AviMjpegWriter writer =
+                new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE, audio);
+        writer.writeFrame(FRAME_A, 0, FRAME_A.length);
+        writer.close();
+
+        final ByteBuffer file = readFile();
+        final int frameBytes = SAMPLES_PER_FRAME * 2;
+        final String[] expectedChunks = { "00dc", "01wb", "01wb", "01wb" };
+        // One more sample than a frame fits in the audio buffer
+        final int[] expectedSizes = { 5, frameBytes, frameBytes + 2, frameBytes - 2 };
+        assertHeaders(file, audio, expectedChunks.length);
+        assertEquals(1, file.getInt(48)); // dwTotalFrames
+        assertChunks(file, expectedChunks, expectedSizes, audio);
+    }
+
+    public void testEmptyVideo() throws IOException {
+        new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE).close();
+
+        final ByteBuffer file = readFile();
+        assertEquals(AviMjpegWriter.HEADER_SIZE + 8, file.limit());
+        assertEquals(file.limit() - 8, file.getInt(4));
+        assertEquals(0, file.getInt(48));
+        assertEquals(4, file.getInt(216)); // Just the 'movi' fourcc
+        assertFourCc(file, AviMjpegWriter.HEADER_SIZE, "idx1");
+    }
+
+    public void testRepeatNeedsAFrame() throws IOException {
+        final AviMjpegWriter writer = new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE);
+        try {
+            writer.repeatFrame(1);
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException e) {
+            // Expected
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testWriteAfterClose() throws IOException {
+        final AviMjpegWriter writer = new AviMjpegWriter(mFile, WIDTH, HEIGHT, FRAME_RATE);
+        writer.close();
+        try {
+            writer.writeFrame(FRAME_A, 0, FRAME_A.length);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Check the headers of a video with audio, which has its audio 'strl' list where the 'movi'
+     * list starts in a video without.
+     */
+    private static void assertHeaders(ByteBuffer file, PcmSource audio, int chunkCount) {
+        final int blockAlign = audio.getChannelCount() * 2;
+        assertFourCc(file, 0, "RIFF");
+        assertEquals(file.limit() - 8, file.getInt(4));
+        assertEquals(192 + AviMjpegWriter.AUDIO_HEADER_SIZE, file.getInt(16));
+        assertEquals(2, file.getInt(56)); // dwStreams
+
+        assertFourCc(file, 212, "LIST");
+        assertEquals(AviMjpegWriter.AUDIO_HEADER_SIZE - 8, file.getInt(216));
+        assertFourCc(file, 220, "strl");
+        assertFourCc(file, 224, "strh");
+        assertFourCc(file, 232, "auds");
+        assertEquals(blockAlign, file.getInt(252)); // dwScale
+        assertEquals(SAMPLE_RATE * blockAlign, file.getInt(256)); // dwRate
+        assertEquals(blockAlign, file.getInt(276)); // dwSampleSize
+        assertFourCc(file, 288, "strf");
+        assertEquals(18, file.getInt(292));
+        assertEquals(1, file.getShort(296)); // PCM
+        assertEquals(audio.getChannelCount(), file.getShort(298));
+        assertEquals(SAMPLE_RATE, file.getInt(300));
+        assertEquals(SAMPLE_RATE * blockAlign, file.getInt(304));
+        assertEquals(blockAlign, file.getShort(308));
+        assertEquals(16, file.getShort(310));
+
+        final int moviOffset = AviMjpegWriter.MOVI_OFFSET + AviMjpegWriter.AUDIO_HEADER_SIZE;
+        assertFourCc(file, moviOffset - 8, "LIST");
+        assertFourCc(file, moviOffset, "movi");
+        assertFourCc(file, moviOffset + file.getInt(moviOffset - 4), "idx1");
+        assertEquals(16 * chunkCount, file.getInt(moviOffset + file.getInt(moviOffset - 4) + 4));
+    }
+
+    /**
+     * Walk the chunks in the 'movi' list and the index entries that point at them, checking that
+     * the audio chunks hold all of the audio in order.
+     */
+    private static void assertChunks(ByteBuffer file, String[] expectedChunks,
+            int[] expectedSizes, PcmSource audio) {
+        final int moviOffset = AviMjpegWriter.MOVI_OFFSET + AviMjpegWriter.AUDIO_HEADER_SIZE;
+        final int moviEnd = moviOffset + file.getInt(moviOffset - 4);
+        int position = moviOffset + 4;
+        int indexPosition = moviEnd + 8;
+        int audioOffset = 0;
+        for (int i = 0; i < expectedChunks.length; i++) {
+            assertFourCc(file, position, expectedChunks[i]);
+            assertEquals("Size of chunk " + i, expectedSizes[i], file.getInt(position + 4));
+            if (expectedChunks[i].equals("01wb")) {
+                for (int j = 0; j < expectedSizes[i]; j++) {
+                    assertEquals("Audio byte " + audioOffset, audio.getByte(audioOffset++),
+                            file.get(position + 8 + j));
+                }
+            }
+
+            assertFourCc(file, indexPosition, expectedChunks[i]);
+            assertEquals(position, moviOffset + file.getInt(indexPosition + 8));
+            assertEquals(expectedSizes[i], file.getInt(indexPosition + 12));
+
+            position += 8 + ((expectedSizes[i] + 1) & ~1);
+            indexPosition += 16;
+        }
+        assertEquals(moviEnd, position);
+        assertEquals(audio.getLength(), audioOffset);
+        assertEquals(file.limit(), indexPosition);
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            final byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void assertFourCc(ByteBuffer file, int offset, String expected) {
+        final StringBuilder fourCc = new StringBuilder(4);
+        for (int i = 0; i < 4; i++) {
+            fourCc.append((char) file.get(offset + i));
+        }
+        assertEquals("At offset " + offset, expected, fourCc.toString());
+    }
+
+    /**
+     * Made up audio whose bytes count up, handed out a few bytes at a time so that reads that come
+     * up short are covered.
+     */
+    private static class PcmSource implements AviMjpegWriter.AudioSource {
+        private static final int MAX_READ = 7;
+
+        private final int mChannelCount;
+        private final int mLength;
+        private int mPosition = 0;
+
+        PcmSource(int channelCount, int sampleCount) {
+            mChannelCount = channelCount;
+            mLength = sampleCount * channelCount * 2;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        @Override
+        public int getChannelCount() {
+            return mChannelCount;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mPosition == mLength) {
+                return -1;
+            }
+            final int count = Math.min(Math.min(length, MAX_READ), mLength - mPosition);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = getByte(mPosition++);
+            }
+            return count;
+        }
+
+        byte getByte(int offset) {
+            return (byte) (offset * 7);
+        }
+
+        int getLength() {
+            return mLength;
+        }
+    }
+}
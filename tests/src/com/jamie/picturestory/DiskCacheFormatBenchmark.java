@@ -0,0 +1,147 @@
+package com.jamie.picturestory;
+
+import java.io.File;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Writes the same pages to a DiskLruCache in each of its storage formats, JPEG, raw pixels and
+ * deflated raw pixels, and compares how long it takes to read an entry back against how much
+ * space the entries take up on disk.
+ */
+public class DiskCacheFormatBenchmark extends AndroidTestCase {
+    private static final String TAG = "DiskCacheFormatBenchmark";
+
+    private static final int PAGE_COUNT = 4;
+    private static final int PAGE_WIDTH = 480;
+    private static final int PAGE_HEIGHT = 320;
+    private static final int READ_ROUNDS = 5;
+    private static final long MAX_BYTE_SIZE = 20 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 70;
+
+    private File mCacheDir;
+    private Bitmap[] mPages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "DiskCacheFormatBenchmark");
+        deleteRecursively(mCacheDir);
+
+        mPages = new Bitmap[PAGE_COUNT];
+        final Random random = new Random(42);
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            mPages[i] = createPage(random);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mCacheDir);
+        super.tearDown();
+    }
+
+    public void testFormats() {
+        final Result jpeg = measure("jpeg", false, false);
+        final Result raw = measure("raw", true, false);
+        final Result rawDeflate = measure("raw+deflate", true, true);
+
+        Log.i(TAG, PAGE_COUNT + " pages of " + PAGE_WIDTH + "x" + PAGE_HEIGHT + ": " + jpeg + ", "
+                + raw + ", " + rawDeflate);
+        assertTrue("Deflate should shrink raw entries",
+                rawDeflate.bytesPerEntry < raw.bytesPerEntry);
+        // Loose, the point of the raw format is to skip decoding a JPEG on every read
+        assertTrue("Raw reads should be no slower than JPEG reads",
+                raw.nanosPerRead < jpeg.nanosPerRead * 3 / 2);
+    }
+
+    /**
+     * Fill a cache in one format and time reading every entry back a few times.
+     */
+    private Result measure(String name, boolean rawFormat, boolean deflate) {
+        final File cacheDir = new File(mCacheDir, name);
+        cacheDir.mkdirs();
+        final DiskLruCache cache = DiskLruCache.openCache(getContext(), cacheDir, MAX_BYTE_SIZE);
+        assertNotNull(cache);
+        cache.setCompressParams(Bitmap.CompressFormat.JPEG, JPEG_QUALITY);
+        cache.setRawParams(rawFormat, deflate);
+        cache.setMaxItemCount(PAGE_COUNT);
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            cache.put(getKey(i), mPages[i]);
+        }
+        assertEquals(PAGE_COUNT, cache.size());
+
+        // The first read of an entry also checks its checksum, so leave it out of the timing
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            assertNotNull(cache.get(getKey(i)));
+        }
+
+        final long start = System.nanoTime();
+        for (int round = 0; round < READ_ROUNDS; round++) {
+            for (int i = 0; i < PAGE_COUNT; i++) {
+                final Bitmap bitmap = cache.get(getKey(i));
+                assertEquals(PAGE_WIDTH, bitmap.getWidth());
+                assertEquals(PAGE_HEIGHT, bitmap.getHeight());
+            }
+        }
+        final long nanosPerRead = (System.nanoTime() - start) / (READ_ROUNDS * PAGE_COUNT);
+
+        final Result result = new Result(name, nanosPerRead, cache.getByteSize() / PAGE_COUNT);
+        cache.close();
+        return result;
+    }
+
+    /**
+     * A smooth gradient with some noise, which compresses more like a photo than a flat colour.
+     */
+    private static Bitmap createPage(Random random) {
+        final int[] pixels = new int[PAGE_WIDTH * PAGE_HEIGHT];
+        final int tint = random.nextInt(0x100);
+        for (int y = 0; y < PAGE_HEIGHT; y++) {
+            for (int x = 0; x < PAGE_WIDTH; x++) {
+                final int noise = random.nextInt(16);
+                final int r = (x * 0xFF / PAGE_WIDTH + noise) & 0xFF;
+                final int g = (y * 0xFF / PAGE_HEIGHT + noise) & 0xFF;
+                pixels[y * PAGE_WIDTH + x] = 0xFF000000 | (r << 16) | (g << 8) | tint;
+            }
+        }
+        final Bitmap page = Bitmap.createBitmap(PAGE_WIDTH, PAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        page.setPixels(pixels, 0, PAGE_WIDTH, 0, 0, PAGE_WIDTH, PAGE_HEIGHT);
+        return page;
+    }
+
+    private static String getKey(int i) {
+        return "content://media/external/images/media/" + i;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class Result {
+        final String name;
+        final long nanosPerRead;
+        final long bytesPerEntry;
+
+        Result(String name, long nanosPerRead, long bytesPerEntry) {
+            this.name = name;
+            this.nanosPerRead = nanosPerRead;
+            this.bytesPerEntry = bytesPerEntry;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + nanosPerRead / 1000 + "us per read, " + bytesPerEntry / 1024
+                    + "KB per entry";
+        }
+    }
+}
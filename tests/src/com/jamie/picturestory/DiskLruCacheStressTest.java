@@ -0,0 +1,317 @@
+package com.jamie.picturestory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Hammers a DiskLruCache from several threads with puts, gets and removes of a handful of keys,
+ * with a low item limit so that trims and journal compactions happen throughout, and then checks
+ * that the journal reloads to exactly the entries that were left. Also times reads and writes of
+ * distinct keys from several threads against the same work done behind one shared lock, which is
+ * how the cache behaved before writers were serialized by key stripe instead of by the index lock.
+ */
+public class DiskLruCacheStressTest extends AndroidTestCase {
+    private static final String TAG = "DiskLruCacheStressTest";
+
+    private static final int THREAD_COUNT = 8;
+    private static final int OPS_PER_THREAD = 1000;
+    // Few enough keys that the threads are always working on the same ones
+    private static final int KEY_COUNT = 12;
+    private static final int MAX_ITEM_COUNT = 6;
+    private static final long MAX_BYTE_SIZE = 10 * 1024 * 1024;
+    private static final int BITMAP_SIZE = 16;
+
+    // Big enough that encoding and decoding dominate the time spent in the index lock
+    private static final int THROUGHPUT_BITMAP_SIZE = 128;
+    private static final int THROUGHPUT_KEYS_PER_THREAD = 4;
+    private static final int THROUGHPUT_ROUNDS = 10;
+
+    private File mCacheDir;
+    private Bitmap[] mBitmaps;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "DiskLruCacheStressTest");
+        deleteRecursively(mCacheDir);
+
+        // A different colour for each key, so an entry served for the wrong key is caught
+        mBitmaps = new Bitmap[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mBitmaps[i] = Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+            mBitmaps[i].eraseColor(getColor(i));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mCacheDir);
+        super.tearDown();
+    }
+
+    public void testConcurrentAccessThenReload() throws Exception {
+        DiskLruCache cache = openCache();
+        // Lossless, so colours can be checked exactly
+        cache.setCompressParams(Bitmap.CompressFormat.PNG, 100);
+
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final DiskLruCache threadCache = cache;
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            final int key = random.nextInt(KEY_COUNT);
+                            final int op = random.nextInt(10);
+                            if (op < 5) {
+                                final Bitmap bitmap = threadCache.get(getKey(key));
+                                if (bitmap != null) {
+                                    assertEquals("Pixel of " + getKey(key), getColor(key),
+                                            bitmap.getPixel(0, 0));
+                                }
+                            } else if (op < 9) {
+                                threadCache.put(getKey(key), mBitmaps[key]);
+                            } else {
+                                threadCache.remove(getKey(key));
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+
+        // Get within the limit so that reopening doesn't trim anything
+        for (int i = 0; i < KEY_COUNT && cache.size() > MAX_ITEM_COUNT; i++) {
+            cache.remove(getKey(i));
+        }
+        final Set<String> keys = getKeys(cache);
+        assertEquals(keys.size(), cache.size());
+        cache.close();
+
+        cache = openCache();
+        assertEquals(keys, getKeys(cache));
+        assertEquals(keys.size(), cache.size());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (keys.contains(getKey(i))) {
+                final Bitmap bitmap = cache.get(getKey(i));
+                assertNotNull("Reloaded " + getKey(i), bitmap);
+                assertEquals(getColor(i), bitmap.getPixel(0, 0));
+            }
+        }
+
+        // Every file belongs to an entry, and nothing was left half written
+        final List<File> files = new ArrayList<File>();
+        listFiles(mCacheDir, files);
+        for (File file : files) {
+            assertFalse("Temporary file " + file, file.getName().endsWith(".tmp"));
+        }
+        assertEquals(cache.size(), files.size());
+        cache.close();
+    }
+
+    public void testOpenDeletesOrphanedFiles() throws Exception {
+        DiskLruCache cache = openCache();
+        cache.put(getKey(0), mBitmaps[0]);
+        cache.put(getKey(1), mBitmaps[1]);
+        final File entryFile = new File(cache.createFilePath(getKey(0)));
+        cache.close();
+        assertTrue(entryFile.exists());
+
+        // What a crash part way through a write and part way through an eviction leave behind
+        final File shardDir = entryFile.getParentFile();
+        final File tempFile = new File(shardDir, entryFile.getName() + "-1.tmp");
+        final File removedFile = new File(shardDir, entryFile.getName() + "-2");
+        writeFile(tempFile);
+        writeFile(removedFile);
+
+        cache = openCache();
+        assertFalse(tempFile.exists());
+        assertFalse(removedFile.exists());
+        assertTrue(entryFile.exists());
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(getKey(0)));
+        assertNotNull(cache.get(getKey(1)));
+        cache.close();
+    }
+
+    public void testStripedLockThroughput() throws Exception {
+        final DiskLruCache cache = openCache();
+        cache.setMaxItemCount(THREAD_COUNT * THROUGHPUT_KEYS_PER_THREAD);
+        final Bitmap bitmap = Bitmap.createBitmap(
+                THROUGHPUT_BITMAP_SIZE, THROUGHPUT_BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(getColor(1));
+
+        // Once each way first so that neither run pays for warming up
+        timeDistinctKeys(cache, bitmap, null);
+        timeDistinctKeys(cache, bitmap, new Object());
+
+        final long singleLockNanos = timeDistinctKeys(cache, bitmap, new Object());
+        final long stripedNanos = timeDistinctKeys(cache, bitmap, null);
+        cache.close();
+
+        final int ops = THREAD_COUNT * THROUGHPUT_KEYS_PER_THREAD * THROUGHPUT_ROUNDS * 2;
+        Log.i(TAG, THREAD_COUNT + " threads on " + Runtime.getRuntime().availableProcessors()
+                + " cpus: " + stripedNanos / ops / 1000 + "us per op with striped locks, "
+                + singleLockNanos / ops / 1000 + "us per op behind a single lock ("
+                + String.format("%.2f", (double) singleLockNanos / stripedNanos) + "x)");
+        // Loose, as a single core device can't run the encodes in parallel
+        assertTrue("Striped locks should be no slower than a single lock",
+                stripedNanos < singleLockNanos * 3 / 2);
+    }
+
+    /**
+     * Have each thread put and then get its own keys over and over.
+     *
+     * @param sharedLock A lock to hold around every put and get, or null to rely on the cache
+     * @return The time in nanoseconds until every thread finished
+     */
+    private long timeDistinctKeys(final DiskLruCache cache, final Bitmap bitmap,
+            final Object sharedLock) throws Exception {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < THROUGHPUT_ROUNDS; round++) {
+                            for (int k = 0; k < THROUGHPUT_KEYS_PER_THREAD; k++) {
+                                final String key = getKey(thread * THROUGHPUT_KEYS_PER_THREAD + k);
+                                // Removing first so that every put really writes the entry
+                                cache.remove(key);
+                                final Bitmap read;
+                                if (sharedLock != null) {
+                                    synchronized (sharedLock) {
+                                        cache.put(key, bitmap);
+                                    }
+                                    synchronized (sharedLock) {
+                                        read = cache.get(key);
+                                    }
+                                } else {
+                                    cache.put(key, bitmap);
+                                    read = cache.get(key);
+                                }
+                                assertNotNull("Read back " + key, read);
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+        return elapsed;
+    }
+
+    private DiskLruCache openCache() {
+        final DiskLruCache cache = DiskLruCache.openCache(getContext(), mCacheDir, MAX_BYTE_SIZE);
+        assertNotNull(cache);
+        cache.setMaxItemCount(MAX_ITEM_COUNT);
+        return cache;
+    }
+
+    private static Set<String> getKeys(DiskLruCache cache) {
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (cache.containsKey(getKey(i))) {
+                keys.add(getKey(i));
+            }
+        }
+        return keys;
+    }
+
+    private static String getKey(int i) {
+        return "content://media/external/images/media/" + i;
+    }
+
+    private static int getColor(int i) {
+        return 0xFF000000 | (i * 0x151515);
+    }
+
+    /**
+     * Collect the files in the shard directories, skipping the journal and quarantine.
+     */
+    private static void listFiles(File dir, List<File> files) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (!DiskLruCache.QUARANTINE_DIR.equals(child.getName())) {
+                    listFiles(child, files);
+                }
+            } else if (!isJournal(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static boolean isJournal(File file) {
+        return DiskLruCache.JOURNAL_FILE.equals(file.getName())
+                || DiskLruCache.JOURNAL_FILE_TMP.equals(file.getName());
+    }
+
+    private static void writeFile(File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,136 @@
+package com.jamie.picturestory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads the orientation from made up JPEG headers, including one whose EXIF segment is bigger than
+ * the reader is allowed to read because of the thumbnail stored after IFD0.
+ */
+public class ExifReaderTest extends TestCase {
+    private static final int MAX_BYTES = 64 * 1024;
+    // Less than the EXIF segment in testLargeThumbnail
+    private static final int SMALL_MAX_BYTES = 4 * 1024;
+
+    public void testOrientations() {
+        assertEquals(0, read(jpeg(exif(true, 1, 0))));
+        assertEquals(90, read(jpeg(exif(true, 6, 0))));
+        assertEquals(180, read(jpeg(exif(false, 3, 0))));
+        assertEquals(270, read(jpeg(exif(false, 8, 0))));
+    }
+
+    public void testLargeThumbnail() {
+        // The segment runs well past the limit, but IFD0 is at its start
+        final CountingInputStream in = new CountingInputStream(jpeg(exif(true, 6, 60 * 1024)));
+        assertEquals(90, ExifReader.readOrientation(in, SMALL_MAX_BYTES));
+        assertTrue("Read " + in.getCount() + " bytes", in.getCount() < 256);
+    }
+
+    public void testOtherSegmentsFirst() {
+        final byte[] xmp = segment(0xE1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes());
+        final byte[] app0 = segment(0xE0, "JFIF\0\1\1\0\0\1\0\1\0\0".getBytes());
+        assertEquals(270, read(jpeg(app0, xmp, exif(false, 8, 0))));
+    }
+
+    public void testNoExif() {
+        assertEquals(0, read(new byte[] { 'P', 'N', 'G' }));
+        assertEquals(0, read(jpeg(new byte[] { (byte) 0xFF, (byte) 0xDA })));
+    }
+
+    public void testTruncated() {
+        final byte[] full = jpeg(exif(true, 6, 0));
+        final byte[] truncated = new byte[30];
+        System.arraycopy(full, 0, truncated, 0, truncated.length);
+        assertEquals(ExifReader.ORIENTATION_UNKNOWN, read(truncated));
+        assertEquals(ExifReader.ORIENTATION_UNKNOWN,
+                ExifReader.readOrientation(new ByteArrayInputStream(full), 20));
+    }
+
+    private static int read(byte[] data) {
+        return ExifReader.readOrientation(new ByteArrayInputStream(data), MAX_BYTES);
+    }
+
+    private static byte[] jpeg(byte[]... segments) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        for (byte[] segment : segments) {
+            out.write(segment, 0, segment.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Build an APP1 segment holding a TIFF structure with an IFD0 of three entries, one of them the
+     * orientation, followed by a thumbnail of the given size.
+     */
+    private static byte[] exif(boolean littleEndian, int orientation, int thumbnailSize) {
+        final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.write('E');
+        tiff.write('x');
+        tiff.write('i');
+        tiff.write('f');
+        tiff.write(0);
+        tiff.write(0);
+        final byte order = (byte) (littleEndian ? 'I' : 'M');
+        tiff.write(order);
+        tiff.write(order);
+        putShort(tiff, 42, littleEndian);
+        putInt(tiff, 8, littleEndian);
+
+        putShort(tiff, 3, littleEndian);
+        putEntry(tiff, 0x010F, 2, 0, littleEndian); // Make
+        putEntry(tiff, 0x0112, 3, orientation, littleEndian);
+        putEntry(tiff, 0x0110, 2, 0, littleEndian); // Model
+        putInt(tiff, 0, littleEndian); // No IFD1
+
+        final byte[] thumbnail = new byte[thumbnailSize];
+        tiff.write(thumbnail, 0, thumbnail.length);
+        return segment(0xE1, tiff.toByteArray());
+    }
+
+    private static void putEntry(ByteArrayOutputStream out, int tag, int type, int value,
+            boolean littleEndian) {
+        putShort(out, tag, littleEndian);
+        putShort(out, type, littleEndian);
+        putInt(out, 1, littleEndian);
+        putShort(out, value, littleEndian);
+        putShort(out, 0, littleEndian);
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(marker);
+        putShort(out, payload.length + 2, false);
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static void putShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        } else {
+            out.write((value >> 8) & 0xFF);
+            out.write(value & 0xFF);
+        }
+    }
+
+    private static void putInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        putShort(out, littleEndian ? value & 0xFFFF : value >>> 16, littleEndian);
+        putShort(out, littleEndian ? value >>> 16 : value & 0xFFFF, littleEndian);
+    }
+
+    private static class CountingInputStream extends ByteArrayInputStream {
+        CountingInputStream(byte[] data) {
+            super(data);
+        }
+
+        int getCount() {
+            return pos;
+        }
+    }
+}
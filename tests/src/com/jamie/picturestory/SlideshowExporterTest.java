@@ -0,0 +1,194 @@
+package com.jamie.picturestory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the exporter headlessly, with pages that are just their positions and a
+ * {@link FrameLogSink} describing the frames they are written to.
+ */
+public class SlideshowExporterTest extends TestCase {
+    private static final int FRAME_RATE = 30;
+
+    // Page 1 is shown for less than a frame, and the move from page 2 to page 2 changes nothing
+    private static final StoryTimeline TIMELINE = new StoryTimeline(
+            new long[] { 0, 1000, 1010, 2500, 2600 }, new int[] { 0, 1, 2, 2, 3 }, 4000);
+    private static final String FRAME_LOG = "0+30 0\n30+48 2\n78+42 3\n";
+
+    public void testSegments() {
+        final SlideshowExporter<Integer> exporter =
+                new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE);
+        assertEquals(120, exporter.getFrameCount());
+        final List<SlideshowExporter.Segment> segments = exporter.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(2, segments.get(1).position);
+        assertEquals(30, segments.get(1).firstFrame);
+        assertEquals(48, segments.get(1).frameCount);
+    }
+
+    public void testExportIsDeterministic() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            final PageSource source = new PageSource(-1);
+            final FrameLogSink<Integer> sink =
+                    new FrameLogSink<Integer>();
+            new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE).export(source, sink);
+
+            assertEquals(FRAME_LOG, sink.toString());
+            assertTrue(sink.isFinished());
+            source.assertAllReleased();
+        }
+    }
+
+    public void testEmptyTimeline() throws Exception {
+        final StoryTimeline timeline = new StoryTimeline(new long[0], new int[0], 0);
+        final FrameLogSink<Integer> sink =
+                new FrameLogSink<Integer>();
+        new SlideshowExporter<Integer>(timeline, FRAME_RATE).export(new PageSource(-1), sink);
+
+        assertEquals("", sink.toString());
+        assertTrue(sink.isFinished());
+    }
+
+    public void testNoEndMarker() throws Exception {
+        final List<StoryTransition> transitions = new ArrayList<StoryTransition>();
+        transitions.add(new StoryTransition(0, 0));
+        transitions.add(new StoryTransition(1, 1000));
+        final StoryTimeline timeline = StoryTimeline.fromTransitions(transitions);
+
+        // The last page isn't dropped
+        final FrameLogSink<Integer> sink = new FrameLogSink<Integer>();
+        new SlideshowExporter<Integer>(timeline, FRAME_RATE).export(new PageSource(-1), sink);
+        final long lastFrames = SlideshowExporter.DEFAULT_LAST_PAGE_TIME * FRAME_RATE / 1000;
+        assertEquals("0+30 0\n30+" + lastFrames + " 1\n", sink.toString());
+
+        // Nor is it cut short of the narration
+        final SlideshowExporter<Integer> narrated =
+                new SlideshowExporter<Integer>(timeline, FRAME_RATE, 8500);
+        assertEquals(255, narrated.getFrameCount());
+        assertEquals(225, narrated.getSegments().get(1).frameCount);
+    }
+
+    public void testNarrationLongerThanStory() {
+        final SlideshowExporter<Integer> exporter =
+                new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE, 5000);
+        assertEquals(150, exporter.getFrameCount());
+        assertEquals(72, exporter.getSegments().get(2).frameCount);
+
+        // A shorter narration doesn't cut the story short
+        assertEquals(120, new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE, 3000)
+                .getFrameCount());
+    }
+
+    public void testLoadFailure() throws Exception {
+        final PageSource source = new PageSource(3);
+        final FrameLogSink<Integer> sink =
+                new FrameLogSink<Integer>();
+        try {
+            new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE).export(source, sink);
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected
+        }
+        assertFalse(sink.isFinished());
+        source.assertAllReleased();
+    }
+
+    public void testCancel() throws Exception {
+        final PageSource source = new PageSource(-1);
+        final SlideshowExporter<Integer> exporter =
+                new SlideshowExporter<Integer>(TIMELINE, FRAME_RATE);
+        final FrameLogSink<Integer> sink =
+                new FrameLogSink<Integer>() {
+                    @Override
+                    public void writeFrames(Integer page, long firstFrame, int frameCount) {
+                        super.writeFrames(page, firstFrame, frameCount);
+                        exporter.cancel();
+                    }
+                };
+        try {
+            exporter.export(source, sink);
+            fail("Expected InterruptedException");
+        } catch (final InterruptedException e) {
+            // Expected
+        }
+        assertEquals("0+30 0\n", sink.toString());
+        assertFalse(sink.isFinished());
+        source.assertAllReleased();
+    }
+
+    /**
+     * Loads each page as its position, keeping track of the pages that haven't been released.
+     */
+    private static class PageSource implements SlideshowExporter.FrameSource<Integer> {
+        private final int mFailAt;
+        private final List<Integer> mLoaded = new ArrayList<Integer>();
+
+        /**
+         * @param failAt The page that fails to load, or -1
+         */
+        PageSource(int failAt) {
+            mFailAt = failAt;
+        }
+
+        @Override
+        public synchronized Integer loadPage(int position) throws IOException {
+            if (position == mFailAt) {
+                throw new IOException("Unable to load page " + position);
+            }
+            // A new instance for each load, so releases are matched up by identity
+            final Integer page = new Integer(position);
+            mLoaded.add(page);
+            return page;
+        }
+
+        @Override
+        public synchronized void releasePage(Integer page) {
+            for (int i = 0; i < mLoaded.size(); i++) {
+                if (mLoaded.get(i) == page) {
+                    mLoaded.remove(i);
+                    return;
+                }
+            }
+            fail("Released page " + page + " twice or without loading it");
+        }
+
+        synchronized void assertAllReleased() {
+            assertTrue("Pages not released: " + mLoaded, mLoaded.isEmpty());
+        }
+    }
+
+    /**
+     * A sink that describes the frames it receives, one line per page in the form
+     * {@code firstFrame+frameCount page}, for checking exports without encoding anything.
+     */
+    private static class FrameLogSink<F> implements SlideshowExporter.FrameSink<F> {
+        private final StringBuilder mLog = new StringBuilder();
+        private boolean mFinished = false;
+
+        @Override
+        public void writeFrames(F page, long firstFrame, int frameCount) {
+            mLog.append(firstFrame).append('+').append(frameCount).append(' ').append(page)
+                    .append('\n');
+        }
+
+        @Override
+        public void finish() {
+            mFinished = true;
+        }
+
+        /**
+         * @return Whether the export finished
+         */
+        boolean isFinished() {
+            return mFinished;
+        }
+
+        @Override
+        public String toString() {
+            return mLog.toString();
+        }
+    }
+}
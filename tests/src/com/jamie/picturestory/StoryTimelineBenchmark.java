@@ -0,0 +1,86 @@
+package com.jamie.picturestory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Times seeks in a timeline of 100,000 transitions against the linear scan of the transition list
+ * that playback used before {@link StoryTimeline}, checking along the way that both agree.
+ */
+public class StoryTimelineBenchmark extends TestCase {
+    private static final String TAG = "StoryTimelineBenchmark";
+
+    private static final int EVENT_COUNT = 100000;
+    private static final int SEEK_COUNT = 100000;
+    private static final int LINEAR_SEEK_COUNT = 1000;
+
+    private List<StoryTransition> mTransitions;
+    private StoryTimeline mTimeline;
+    private long[] mSeekTimes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Random random = new Random(42);
+        mTransitions = new ArrayList<StoryTransition>(EVENT_COUNT + 1);
+        long time = 0;
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            // Some transitions share a time, as happens when pages are flicked through quickly
+            time += random.nextInt(5) == 0 ? 0 : random.nextInt(2000);
+            mTransitions.add(new StoryTransition(random.nextInt(50), time));
+        }
+        mTransitions.add(new StoryTransition(-1, time + 1000));
+        mTimeline = StoryTimeline.fromTransitions(mTransitions);
+
+        mSeekTimes = new long[SEEK_COUNT];
+        for (int i = 0; i < SEEK_COUNT; i++) {
+            mSeekTimes[i] = (long) (random.nextDouble() * (time + 2000)) - 1000;
+        }
+    }
+
+    public void testSeekMatchesLinearScan() {
+        for (int i = 0; i < LINEAR_SEEK_COUNT; i++) {
+            final long time = mSeekTimes[i];
+            assertEquals("Seeking to " + time, linearIndexAt(time), mTimeline.indexAt(time));
+        }
+    }
+
+    public void testSeekTime() {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < SEEK_COUNT; i++) {
+            checksum += mTimeline.pageAt(mSeekTimes[i]);
+        }
+        final long timelineNanos = (System.nanoTime() - start) / SEEK_COUNT;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LINEAR_SEEK_COUNT; i++) {
+            checksum += linearIndexAt(mSeekTimes[i]);
+        }
+        final long linearNanos = (System.nanoTime() - start) / LINEAR_SEEK_COUNT;
+
+        Log.i(TAG, EVENT_COUNT + " transitions: " + timelineNanos + "ns per timeline seek, "
+                + linearNanos + "ns per linear seek (checksum " + checksum + ")");
+        assertTrue("Timeline seeks should beat a linear scan", timelineNanos < linearNanos);
+    }
+
+    /**
+     * Seek by walking the transitions from the start, as playback used to.
+     */
+    private int linearIndexAt(long time) {
+        int index = -1;
+        for (int i = 0; i < mTransitions.size(); i++) {
+            final StoryTransition transition = mTransitions.get(i);
+            if (transition.getPosition() < 0 || transition.getTime() > time) {
+                break;
+            }
+            index = i;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,128 @@
+package com.jamie.picturestory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StoryTimelineTest extends TestCase {
+    // Page 0 at the start, page 2 at 1s, page 1 at 2.5s, page 3 at 4s and the end at 6s
+    private static final long[] TIMES = { 0, 1000, 2500, 4000 };
+    private static final int[] POSITIONS = { 0, 2, 1, 3 };
+    private static final long END_TIME = 6000;
+
+    private StoryTimeline mTimeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTimeline = new StoryTimeline(TIMES, POSITIONS, END_TIME);
+    }
+
+    public void testBeforeFirstTransition() {
+        final StoryTimeline timeline = new StoryTimeline(
+                new long[] { 500, 1500 }, new int[] { 4, 5 }, 2000);
+        assertEquals(-1, timeline.indexAt(0));
+        assertEquals(-1, timeline.indexAt(499));
+        assertEquals(0, timeline.nextIndexAfter(499));
+        // The first page shows until the first transition
+        assertEquals(4, timeline.pageAt(0));
+    }
+
+    public void testExactHit() {
+        for (int i = 0; i < TIMES.length; i++) {
+            assertEquals(i, mTimeline.indexAt(TIMES[i]));
+            assertEquals(POSITIONS[i], mTimeline.pageAt(TIMES[i]));
+            assertEquals(i + 1, mTimeline.nextIndexAfter(TIMES[i]));
+        }
+    }
+
+    public void testBetweenTransitions() {
+        assertEquals(0, mTimeline.indexAt(999));
+        assertEquals(0, mTimeline.pageAt(999));
+        assertEquals(1, mTimeline.indexAt(1001));
+        assertEquals(2, mTimeline.pageAt(2499));
+        assertEquals(2, mTimeline.nextIndexAfter(2499));
+        assertEquals(2, mTimeline.indexAt(3999));
+        assertEquals(1, mTimeline.pageAt(3999));
+    }
+
+    public void testEnd() {
+        assertEquals(END_TIME, mTimeline.getEndTime());
+        assertEquals(3, mTimeline.indexAt(END_TIME));
+        assertEquals(3, mTimeline.pageAt(Long.MAX_VALUE));
+        assertEquals(mTimeline.size(), mTimeline.nextIndexAfter(4000));
+        assertEquals(mTimeline.size(), mTimeline.nextIndexAfter(Long.MAX_VALUE));
+    }
+
+    public void testEndTimeIsNeverBeforeLastTransition() {
+        final StoryTimeline timeline = new StoryTimeline(TIMES, POSITIONS, 100);
+        assertEquals(4000, timeline.getEndTime());
+    }
+
+    public void testEmpty() {
+        final StoryTimeline timeline = new StoryTimeline(new long[0], new int[0], 0);
+        assertEquals(0, timeline.size());
+        assertEquals(-1, timeline.indexAt(1000));
+        assertEquals(-1, timeline.pageAt(1000));
+        assertEquals(0, timeline.nextIndexAfter(1000));
+    }
+
+    public void testSimultaneousTransitions() {
+        // The last of several transitions at the same time wins
+        final StoryTimeline timeline = new StoryTimeline(
+                new long[] { 0, 1000, 1000, 1000 }, new int[] { 0, 1, 2, 3 }, 2000);
+        assertEquals(0, timeline.indexAt(999));
+        assertEquals(3, timeline.indexAt(1000));
+        assertEquals(3, timeline.pageAt(1000));
+        assertEquals(1, timeline.nextIndexAfter(999));
+    }
+
+    public void testFromTransitionsUsesEndMarker() {
+        final List<StoryTransition> transitions = new ArrayList<StoryTransition>();
+        transitions.add(new StoryTransition(0, 0));
+        transitions.add(new StoryTransition(1, 1200));
+        transitions.add(new StoryTransition(-1, 3000));
+
+        final StoryTimeline timeline = StoryTimeline.fromTransitions(transitions);
+        assertEquals(2, timeline.size());
+        assertEquals(1200, timeline.getTime(1));
+        assertEquals(1, timeline.getPosition(1));
+        assertEquals(3000, timeline.getEndTime());
+    }
+
+    public void testFromTransitionsWithoutEndMarker() {
+        final List<StoryTransition> transitions = new ArrayList<StoryTransition>();
+        transitions.add(new StoryTransition(0, 0));
+        transitions.add(new StoryTransition(1, 1200));
+
+        final StoryTimeline timeline = StoryTimeline.fromTransitions(transitions);
+        assertEquals(2, timeline.size());
+        assertEquals(1200, timeline.getEndTime());
+    }
+
+    public void testCopiesArrays() {
+        final long[] times = TIMES.clone();
+        final StoryTimeline timeline = new StoryTimeline(times, POSITIONS, END_TIME);
+        times[1] = 3000;
+        assertEquals(1000, timeline.getTime(1));
+    }
+
+    public void testRejectsMismatchedArrays() {
+        try {
+            new StoryTimeline(new long[] { 0, 1000 }, new int[] { 0 }, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRejectsOutOfOrderTimes() {
+        try {
+            new StoryTimeline(new long[] { 0, 2000, 1000 }, new int[] { 0, 1, 2 }, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}